@@ -0,0 +1,556 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A file system that keeps recently used blocks of files in memory, in front
+ * of another file system. A read that hits in the cache does not touch the
+ * underlying file system at all. Writes only go to the cache; a dirty block is
+ * written back when it is evicted, when the last open instance of its file is
+ * closed, or when <tt>flush()</tt> is called. Blocks are replaced using the
+ * clock algorithm.
+ *
+ * <p>
+ * The part of a write that extends a file is also written through at once,
+ * so that the underlying file system allocates space for it. A full disk then
+ * shortens that write, instead of making a later write-back fail.
+ *
+ * <p>
+ * Every open instance of a file shares the same cached blocks, and clean
+ * blocks stay cached after the file is closed, so that a file that is read
+ * again, such as an executable that is run repeatedly, is served from memory.
+ *
+ * <p>
+ * The cache's lock is released while a block is read or written back, so
+ * that other threads can use the rest of the cache meanwhile. The block is
+ * marked busy until the transfer completes, and a thread that needs a busy
+ * block waits for it.
+ */
+public class CachedFileSystem implements FileSystem {
+	/**
+	 * Allocate a new block cache in front of the specified file system. The
+	 * number and size of the blocks are read from <tt>nachos.conf</tt>.
+	 *
+	 * @param fileSystem the file system holding the files.
+	 */
+	public CachedFileSystem(FileSystem fileSystem) {
+		this.fileSystem = fileSystem;
+
+		blockSize = Config.getInteger("CachedFileSystem.blockSize", 1024);
+		int numBlocks = Config.getInteger("CachedFileSystem.numBlocks", 64);
+		Lib.assertTrue(blockSize > 0 && numBlocks > 0);
+
+		blocks = new Block[numBlocks];
+		for (int i = 0; i < numBlocks; i++)
+			blocks[i] = new Block();
+
+		lock = new Lock();
+		blockReady = new Condition2(lock);
+	}
+
+	public OpenFile open(String name, boolean create) {
+		lock.acquire();
+
+		CachedFile file = files.get(name);
+
+		// a file that is already open can be opened again without asking the
+		// underlying file system, unless it might have to truncate it
+		if (file == null || file.openCount == 0 || create) {
+			if (file != null)
+				flushFile(file);
+
+			OpenFile backing = fileSystem.open(name, create);
+			if (backing == null) {
+				if (file != null && file.openCount == 0)
+					invalidateFile(file);
+
+				lock.release();
+				return null;
+			}
+
+			if (file == null) {
+				file = new CachedFile(name);
+				file.length = backing.length();
+				files.put(name, file);
+			}
+
+			// the file may have been truncated or changed behind our back
+			if (backing.length() != file.length) {
+				Lib.debug(dbgCache, "invalidating " + name);
+				invalidateFile(file);
+				files.put(name, file);
+				file.length = backing.length();
+			}
+
+			if (file.backing == null)
+				file.backing = backing;
+			else
+				backing.close();
+		}
+
+		file.openCount++;
+		openCount++;
+
+		lock.release();
+		return new CachedOpenFile(file);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+
+		// the blocks of a removed file stay usable until its last close
+		CachedFile file = files.remove(name);
+		if (file != null) {
+			file.removed = true;
+			if (file.openCount == 0)
+				invalidateFile(file);
+		}
+
+		boolean removed = fileSystem.remove(name);
+
+		lock.release();
+		return removed;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Return the file system this cache is in front of, for files that are
+	 * better not cached.
+	 *
+	 * @return the underlying file system.
+	 */
+	public FileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	/**
+	 * Write every dirty block back to the underlying file system.
+	 */
+	public void flush() {
+		lock.acquire();
+
+		for (int i = 0; i < blocks.length; i++)
+			writeBack(blocks[i]);
+
+		lock.release();
+	}
+
+	/**
+	 * Return the number of block accesses that found the block cached.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public int getNumHits() {
+		return numHits;
+	}
+
+	/**
+	 * Return the number of blocks read from the underlying file system.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public int getNumMisses() {
+		return numMisses;
+	}
+
+	/**
+	 * Return the number of dirty blocks written to the underlying file system.
+	 *
+	 * @return the number of write-backs.
+	 */
+	public int getNumWriteBacks() {
+		return numWriteBacks;
+	}
+
+	private int read(CachedFile file, int pos, byte[] buf, int offset,
+			int length) {
+		if (pos < 0 || length < 0 || offset < 0 || offset + length > buf.length)
+			return -1;
+
+		lock.acquire();
+
+		length = Math.max(0, Math.min(length, file.length - pos));
+
+		int amount = 0;
+		while (amount < length) {
+			int index = (pos + amount) / blockSize;
+			int blockOffset = (pos + amount) % blockSize;
+			int chunk = Math.min(length - amount, blockSize - blockOffset);
+
+			Block block = getBlock(file, index, true);
+			System.arraycopy(block.data, blockOffset, buf, offset + amount,
+					chunk);
+
+			amount += chunk;
+		}
+
+		lock.release();
+		return amount;
+	}
+
+	private int write(CachedFile file, int pos, byte[] buf, int offset,
+			int length) {
+		if (pos < 0 || length < 0 || offset < 0 || offset + length > buf.length)
+			return -1;
+
+		lock.acquire();
+
+		int oldLength = file.length;
+		if (pos + length > oldLength) {
+			int start = Math.max(pos, oldLength);
+
+			lock.release();
+			file.backing.write(start, buf, offset + start - pos, pos + length
+					- start);
+			lock.acquire();
+
+			// only what the underlying file system found room for is cached
+			file.length = Math.max(oldLength, file.backing.length());
+			length = Math.max(0, Math.min(length, file.length - pos));
+		}
+
+		int amount = 0;
+		while (amount < length) {
+			int index = (pos + amount) / blockSize;
+			int blockOffset = (pos + amount) % blockSize;
+			int chunk = Math.min(length - amount, blockSize - blockOffset);
+
+			// a block that is overwritten or new does not need to be read
+			boolean load = chunk < blockSize && index * blockSize < oldLength;
+
+			Block block = getBlock(file, index, load);
+			System.arraycopy(buf, offset + amount, block.data, blockOffset,
+					chunk);
+			block.dirty = true;
+
+			amount += chunk;
+		}
+
+		lock.release();
+		return length;
+	}
+
+	private void close(CachedFile file) {
+		lock.acquire();
+
+		// the file may be opened again while the last close writes it back,
+		// in which case the new instance keeps it open
+		if (file.openCount == 1 && !file.removed)
+			flushFile(file);
+
+		openCount--;
+		if (--file.openCount == 0) {
+			if (file.removed) {
+				waitForFile(file);
+				invalidateFile(file);
+			}
+
+			file.backing.close();
+			file.backing = null;
+
+			if (file.blocks.isEmpty())
+				forgetFile(file);
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Return the cached block holding part of a file, loading it if it is not
+	 * cached. The block returned is not busy.
+	 *
+	 * @param load <tt>false</tt> if the block's current contents do not
+	 * matter, because they are all about to be overwritten or lie past the
+	 * end of the file.
+	 */
+	private Block getBlock(CachedFile file, int index, boolean load) {
+		Block block;
+		while (true) {
+			block = file.blocks.get(index);
+			if (block != null && !block.busy) {
+				block.used = true;
+				numHits++;
+				return block;
+			}
+
+			if (block != null) {
+				blockReady.sleep();
+				continue;
+			}
+
+			// another thread may have cached the block while this one waited
+			block = allocateBlock();
+			if (!file.blocks.containsKey(index))
+				break;
+		}
+
+		block.file = file;
+		block.index = index;
+		block.used = true;
+		file.blocks.put(index, block);
+
+		int amount = 0;
+		if (load) {
+			block.busy = true;
+			numBusy++;
+			lock.release();
+
+			amount = file.backing.read(index * blockSize, block.data, 0,
+					blockSize);
+
+			lock.acquire();
+			block.busy = false;
+			numBusy--;
+			blockReady.wakeAll();
+
+			amount = Math.max(0, amount);
+			numMisses++;
+		}
+		Arrays.fill(block.data, amount, blockSize, (byte) 0);
+
+		return block;
+	}
+
+	/**
+	 * Find a block to reuse, writing it back first if it is dirty.
+	 */
+	private Block allocateBlock() {
+		while (true) {
+			while (numBusy == blocks.length)
+				blockReady.sleep();
+
+			Block block = blocks[clockHand];
+			clockHand = (clockHand + 1) % blocks.length;
+
+			if (block.busy)
+				continue;
+
+			if (block.file == null)
+				return block;
+
+			if (block.used) {
+				block.used = false;
+				continue;
+			}
+
+			// the block may be used again while it is written back, so it is
+			// looked at again on a later pass
+			if (block.dirty) {
+				writeBack(block);
+				continue;
+			}
+
+			CachedFile file = block.file;
+			file.blocks.remove(block.index);
+			block.file = null;
+
+			if (file.blocks.isEmpty() && file.openCount == 0)
+				forgetFile(file);
+
+			return block;
+		}
+	}
+
+	/**
+	 * Write a block back to the underlying file system if it is dirty, first
+	 * waiting for it if it is busy. The cache's lock is released during the
+	 * write.
+	 */
+	private void writeBack(Block block) {
+		while (block.busy)
+			blockReady.sleep();
+
+		if (!block.dirty)
+			return;
+
+		CachedFile file = block.file;
+		int pos = block.index * blockSize;
+		int amount = Math.min(blockSize, file.length - pos);
+
+		Lib.debug(dbgCache, "writing back block " + block.index + " of "
+				+ file.name);
+
+		block.busy = true;
+		numBusy++;
+		lock.release();
+
+		// the space was allocated when the file grew, so this cannot run out
+		if (amount > 0) {
+			int written = file.backing.write(pos, block.data, 0, amount);
+			Lib.assertTrue(written == amount, "write-back failed");
+		}
+
+		lock.acquire();
+		block.busy = false;
+		numBusy--;
+		blockReady.wakeAll();
+
+		block.dirty = false;
+		numWriteBacks++;
+	}
+
+	/**
+	 * Write back every dirty block of a file. Returns once the file has no
+	 * dirty blocks, which, since the lock is released during each write, may
+	 * take more than one pass.
+	 */
+	private void flushFile(CachedFile file) {
+		boolean dirty = true;
+		while (dirty) {
+			dirty = false;
+			for (Block block : file.blocks.values().toArray(new Block[0])) {
+				if (block.dirty && block.file == file) {
+					writeBack(block);
+					dirty = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait until no block of a file is busy.
+	 */
+	private void waitForFile(CachedFile file) {
+		boolean busy = true;
+		while (busy) {
+			busy = false;
+			for (Block block : file.blocks.values()) {
+				if (block.busy) {
+					busy = true;
+					blockReady.sleep();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop every cached block of a file, without writing any back.
+	 */
+	private void invalidateFile(CachedFile file) {
+		for (Block block : file.blocks.values()) {
+			block.file = null;
+			block.dirty = false;
+		}
+		file.blocks.clear();
+
+		if (file.openCount == 0)
+			forgetFile(file);
+	}
+
+	private void forgetFile(CachedFile file) {
+		if (files.get(file.name) == file)
+			files.remove(file.name);
+	}
+
+	/**
+	 * The cached state of a file, shared by all its open instances.
+	 */
+	private static class CachedFile {
+		CachedFile(String name) {
+			this.name = name;
+		}
+
+		String name;
+
+		/** The file opened in the underlying file system, while open here. */
+		OpenFile backing = null;
+
+		/** The length of the file, including data not yet written back. */
+		int length;
+
+		int openCount = 0;
+
+		/** Whether the file has been removed while still open. */
+		boolean removed = false;
+
+		/** The cached blocks of this file, by block number. */
+		HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+	}
+
+	private class Block {
+		/** The file this block belongs to, or <tt>null</tt> if it is free. */
+		CachedFile file = null;
+
+		int index;
+
+		byte[] data = new byte[blockSize];
+
+		boolean used = false, dirty = false;
+
+		/** Whether the block is being read or written back. */
+		boolean busy = false;
+	}
+
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(CachedFile file) {
+			super(CachedFileSystem.this, file.name);
+
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			return CachedFileSystem.this.read(file, pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			return CachedFileSystem.this.write(file, pos, buf, offset, length);
+		}
+
+		public int length() {
+			if (file == null)
+				return -1;
+
+			return file.length;
+		}
+
+		public void close() {
+			if (file != null) {
+				CachedFileSystem.this.close(file);
+				file = null;
+			}
+		}
+
+		private CachedFile file;
+	}
+
+	private FileSystem fileSystem;
+
+	/** The files that are open or have blocks cached, by name. */
+	private HashMap<String, CachedFile> files =
+			new HashMap<String, CachedFile>();
+
+	private Block[] blocks;
+
+	private int blockSize;
+
+	private int clockHand = 0;
+
+	private int openCount = 0;
+
+	private int numHits = 0, numMisses = 0, numWriteBacks = 0;
+
+	/** The number of busy blocks. */
+	private int numBusy = 0;
+
+	/** Protects all of the cache's state, but is not held during I/O. */
+	private Lock lock;
+
+	/** Signalled whenever a block stops being busy. */
+	private Condition2 blockReady;
+
+	private static final char dbgCache = 'f';
+}
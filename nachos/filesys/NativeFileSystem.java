@@ -0,0 +1,941 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * A file system kept on the simulated disk. The disk is laid out as a
+ * superblock, a bitmap of the free sectors, a write-ahead log, a table of
+ * inodes, and then data sectors, the first of which hold the directory.
+ *
+ * <p>
+ * An inode describes the data of a file as a list of extents, each a run of
+ * adjacent sectors, so a file written in one go usually needs a single
+ * extent however large it is. The first few extents are kept in the inode
+ * itself, and the rest in an indirect sector. A file grows by extending its
+ * last extent when the sector after it is free, and otherwise by starting a
+ * new extent at the first free run long enough for the rest of the write.
+ *
+ * <p>
+ * There is a single directory, stored as a hash table of fixed-size entries.
+ * A name is looked up in the directory sector it hashes to, and in the ones
+ * after it if that sector has overflowed, so a lookup usually reads one
+ * sector.
+ *
+ * <p>
+ * Every change to the bitmap, the inodes, and the directory goes through a
+ * <tt>WriteAheadLog</tt>, so an operation either happens completely or not
+ * at all, even if Nachos stops in the middle of it. File data is not logged,
+ * but it is written before the metadata that refers to it is committed.
+ *
+ * <p>
+ * The disk is mounted when the file system is first used. It is formatted
+ * when it does not hold a file system yet, or when
+ * <tt>NativeFileSystem.format</tt> is set. The files in the comma-separated
+ * list <tt>NativeFileSystem.copyIn</tt> are then copied from the stub file
+ * system if they are missing, so that the disk can be given programs to run.
+ */
+public class NativeFileSystem implements FileSystem {
+	/**
+	 * Allocate a new file system on the kernel's disk. The disk is not
+	 * touched until the file system is first used, since the kernel creates
+	 * its file system before it is ready to do I/O.
+	 */
+	public NativeFileSystem() {
+		Lib.assertTrue(Disk.numSectors <= Disk.sectorSize * 8);
+
+		lock = new Lock();
+	}
+
+	public OpenFile open(String name, boolean create) {
+		if (!isValidName(name))
+			return null;
+
+		lock.acquire();
+		mount();
+
+		Inode inode;
+		int entry = findEntry(name);
+
+		if (entry == -1) {
+			int number = -1;
+			if (create)
+				number = allocateInode();
+
+			if (number == -1 || !addEntry(name, number)) {
+				if (number != -1)
+					inodeUsed[number] = false;
+
+				lock.release();
+				return null;
+			}
+
+			inode = new Inode(number);
+			inode.type = typeFile;
+			storeInode(inode);
+			commit();
+
+			inodes.put(number, inode);
+		}
+		else {
+			inode = getInode(entryInode(entry));
+
+			if (create && inode.numExtents > 0) {
+				freeExtents(inode);
+				storeInode(inode);
+				commit();
+			}
+		}
+
+		inode.openCount++;
+		openCount++;
+
+		lock.release();
+		return new NativeOpenFile(inode, name);
+	}
+
+	public boolean remove(String name) {
+		if (!isValidName(name))
+			return false;
+
+		lock.acquire();
+		mount();
+
+		int entry = findEntry(name);
+		if (entry == -1) {
+			lock.release();
+			return false;
+		}
+
+		int number = entryInode(entry);
+		removeEntry(entry);
+
+		// an open file keeps its data until its last close
+		Inode inode = inodes.get(number);
+		if (inode != null)
+			inode.removed = true;
+		else
+			freeInode(loadInode(number));
+
+		commit();
+
+		lock.release();
+		return true;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Return the number of operations committed through the log.
+	 *
+	 * @return the number of commits.
+	 */
+	public int getNumCommits() {
+		return (log == null) ? 0 : log.getNumCommits();
+	}
+
+	/**
+	 * Return the number of metadata sectors written through the log.
+	 *
+	 * @return the number of logged sectors.
+	 */
+	public int getNumLoggedSectors() {
+		return (log == null) ? 0 : log.getNumLoggedSectors();
+	}
+
+	/**
+	 * Check that the file this test wrote on the previous boot is intact, and
+	 * write it again for the next boot. The file counts the boots it has
+	 * survived, so a disk that is formatted or damaged on every boot shows up
+	 * as a count that never grows.
+	 */
+	public static void selfTest() {
+		FileSystem fileSystem = ThreadedKernel.fileSystem;
+
+		byte[] data = new byte[selfTestLength];
+		int boots = 0;
+
+		OpenFile file = fileSystem.open(selfTestName, false);
+		if (file != null) {
+			Lib.assertTrue(file.read(0, data, 0, data.length) == data.length,
+					"self-test file truncated");
+			file.close();
+
+			boots = Lib.bytesToInt(data, 0);
+			for (int i = 4; i < data.length; i++)
+				Lib.assertTrue(data[i] == (byte) (boots + i),
+						"self-test file damaged");
+		}
+
+		System.out.println("NativeFileSystem: self-test file has survived "
+				+ boots + " reboots");
+
+		boots++;
+		Lib.bytesFromInt(data, 0, boots);
+		for (int i = 4; i < data.length; i++)
+			data[i] = (byte) (boots + i);
+
+		file = fileSystem.open(selfTestName, true);
+		Lib.assertTrue(file != null
+				&& file.write(0, data, 0, data.length) == data.length,
+				"cannot write self-test file");
+		file.close();
+	}
+
+	private void format() {
+		Lib.debug(dbgFS, "formatting the disk");
+
+		byte[] sector = new byte[Disk.sectorSize];
+		Lib.bytesFromInt(sector, 0, magic);
+		Lib.bytesFromInt(sector, 4, Disk.numSectors);
+		disk.writeSector(superSector, sector, 0);
+
+		log.format();
+
+		byte[] zeros = new byte[Math.max(inodeSectors, dirSectors)
+				* Disk.sectorSize];
+		disk.writeSectors(inodeStart, inodeSectors, zeros, 0);
+		disk.writeSectors(dirStart, dirSectors, zeros, 0);
+
+		usedSectors = new BitSet(Disk.numSectors);
+		usedSectors.set(0, dirStart + dirSectors);
+		inodeUsed = new boolean[numInodes];
+
+		Inode root = new Inode(rootInode);
+		root.type = typeDirectory;
+		root.length = dirSectors * Disk.sectorSize;
+		root.start[0] = dirStart;
+		root.count[0] = dirSectors;
+		root.numExtents = 1;
+		inodeUsed[rootInode] = true;
+
+		storeInode(root);
+		bitmapDirty = true;
+		commit();
+	}
+
+	/**
+	 * Mount the file system the first time it is used, formatting the disk
+	 * first if necessary, and copy in the files named in
+	 * <tt>nachos.conf</tt>. Called with the lock held.
+	 */
+	private void mount() {
+		if (log != null)
+			return;
+
+		disk = ThreadedKernel.synchDisk;
+		Lib.assertTrue(disk != null, "native file system needs a disk");
+
+		log = new WriteAheadLog(disk, logStart, logLength);
+
+		byte[] superblock = new byte[Disk.sectorSize];
+		disk.readSector(superSector, superblock, 0);
+
+		if (Lib.bytesToInt(superblock, 0) != magic
+				|| Lib.bytesToInt(superblock, 4) != Disk.numSectors
+				|| Config.getBoolean("NativeFileSystem.format", false))
+			format();
+		else
+			load();
+
+		String copyIn = Config.getString("NativeFileSystem.copyIn");
+		if (copyIn != null) {
+			for (String name : copyIn.trim().split("[\\s,]+")) {
+				if (name.length() > 0)
+					copyIn(name);
+			}
+		}
+	}
+
+	/**
+	 * Replay the log and read the bitmap and the inode table, then free the
+	 * files that were removed while open on the last boot.
+	 */
+	private void load() {
+		log.recover();
+
+		byte[] bitmap = new byte[Disk.sectorSize];
+		disk.readSector(bitmapSector, bitmap, 0);
+
+		usedSectors = new BitSet(Disk.numSectors);
+		for (int i = 0; i < Disk.numSectors; i++) {
+			if ((bitmap[i / 8] & (1 << (i % 8))) != 0)
+				usedSectors.set(i);
+		}
+
+		byte[] table = new byte[inodeSectors * Disk.sectorSize];
+		disk.readSectors(inodeStart, inodeSectors, table, 0);
+
+		inodeUsed = new boolean[numInodes];
+		for (int i = 0; i < numInodes; i++)
+			inodeUsed[i] = Lib.bytesToInt(table, i * inodeSize) != typeFree;
+
+		freeOrphans();
+	}
+
+	/**
+	 * Free every inode that no directory entry refers to. A file removed
+	 * while open keeps its inode until its last close, so if Nachos stopped
+	 * before then, the inode and its data were never freed.
+	 */
+	private void freeOrphans() {
+		boolean[] named = new boolean[numInodes];
+		named[rootInode] = true;
+
+		for (int i = 0; i < dirSectors; i++) {
+			byte[] data = log.read(dirStart + i);
+			for (int slot = 0; slot < entriesPerSector; slot++) {
+				int inode = Lib.bytesToInt(data, slot * entrySize);
+				if (inode != entryUnused && inode != entryDeleted)
+					named[inode] = true;
+			}
+		}
+
+		for (int i = 0; i < numInodes; i++) {
+			if (inodeUsed[i] && !named[i]) {
+				Lib.debug(dbgFS, "freeing inode " + i
+						+ ", removed while open");
+				freeInode(loadInode(i));
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Copy a file from the stub file system, unless there already is a file
+	 * with that name. Called with the lock held.
+	 */
+	private void copyIn(String name) {
+		FileSystem stub = Machine.stubFileSystem();
+		if (stub == null || !isValidName(name) || findEntry(name) != -1)
+			return;
+
+		OpenFile from = stub.open(name, false);
+		if (from == null)
+			return;
+
+		byte[] data = new byte[Math.max(0, from.length())];
+		int amount = Math.max(0, from.read(0, data, 0, data.length));
+		from.close();
+
+		int number = allocateInode();
+		if (number == -1 || !addEntry(name, number)) {
+			if (number != -1)
+				inodeUsed[number] = false;
+			return;
+		}
+
+		Inode inode = new Inode(number);
+		inode.type = typeFile;
+		writeData(inode, 0, data, 0, amount);
+		storeInode(inode);
+		commit();
+
+		Lib.debug(dbgFS, "copied " + name + " into the native file system");
+	}
+
+	private int read(Inode inode, int pos, byte[] buf, int offset, int length) {
+		if (pos < 0 || length < 0 || offset < 0 || offset + length > buf.length)
+			return -1;
+
+		lock.acquire();
+
+		length = Math.max(0, Math.min(length, inode.length - pos));
+
+		int amount = 0;
+		while (amount < length) {
+			int block = (pos + amount) / Disk.sectorSize;
+			int blockOffset = (pos + amount) % Disk.sectorSize;
+
+			// whole sectors go straight into the caller's buffer
+			if (blockOffset == 0 && length - amount >= Disk.sectorSize) {
+				int blocks = (length - amount) / Disk.sectorSize;
+				transfer(inode, block, blocks, buf, offset + amount, false);
+				amount += blocks * Disk.sectorSize;
+				continue;
+			}
+
+			int chunk = Math.min(length - amount, Disk.sectorSize
+					- blockOffset);
+
+			byte[] sector = new byte[Disk.sectorSize];
+			transfer(inode, block, 1, sector, 0, false);
+			System.arraycopy(sector, blockOffset, buf, offset + amount, chunk);
+
+			amount += chunk;
+		}
+
+		lock.release();
+		return amount;
+	}
+
+	private int write(Inode inode, int pos, byte[] buf, int offset,
+			int length) {
+		if (pos < 0 || length < 0 || offset < 0 || offset + length > buf.length)
+			return -1;
+
+		lock.acquire();
+
+		// a write past the end of the file leaves a hole that must read as
+		// zeros, whatever the newly allocated sectors held before
+		if (pos > inode.length) {
+			int hole = pos - inode.length;
+			byte[] zeros = new byte[hole];
+			if (writeData(inode, inode.length, zeros, 0, hole) < hole) {
+				commit(inode);
+				lock.release();
+				return 0;
+			}
+		}
+
+		int amount = writeData(inode, pos, buf, offset, length);
+		commit(inode);
+
+		lock.release();
+		return amount;
+	}
+
+	/**
+	 * Write to a file, allocating sectors as needed and extending its length,
+	 * but without committing the change to its inode.
+	 *
+	 * @return the number of bytes written, which is less than <i>length</i>
+	 * if the disk is full or the inode has run out of extents.
+	 */
+	private int writeData(Inode inode, int pos, byte[] buf, int offset,
+			int length) {
+		int blocksNeeded = (pos + length + Disk.sectorSize - 1)
+				/ Disk.sectorSize;
+		if (!allocate(inode, blocksNeeded))
+			length = Math.max(0, Math.min(length, allocatedBlocks(inode)
+					* Disk.sectorSize - pos));
+
+		int amount = 0;
+		while (amount < length) {
+			int block = (pos + amount) / Disk.sectorSize;
+			int blockOffset = (pos + amount) % Disk.sectorSize;
+
+			if (blockOffset == 0 && length - amount >= Disk.sectorSize) {
+				int blocks = (length - amount) / Disk.sectorSize;
+				transfer(inode, block, blocks, buf, offset + amount, true);
+				amount += blocks * Disk.sectorSize;
+				continue;
+			}
+
+			int chunk = Math.min(length - amount, Disk.sectorSize
+					- blockOffset);
+
+			// only a sector that already holds file data needs to be read
+			byte[] sector = new byte[Disk.sectorSize];
+			if (block * Disk.sectorSize < inode.length)
+				transfer(inode, block, 1, sector, 0, false);
+
+			System.arraycopy(buf, offset + amount, sector, blockOffset, chunk);
+			transfer(inode, block, 1, sector, 0, true);
+
+			amount += chunk;
+		}
+
+		if (pos + amount > inode.length) {
+			inode.length = pos + amount;
+			inode.dirty = true;
+		}
+
+		return amount;
+	}
+
+	private void close(Inode inode) {
+		lock.acquire();
+
+		openCount--;
+		if (--inode.openCount == 0) {
+			inodes.remove(inode.number);
+
+			if (inode.removed) {
+				freeInode(inode);
+				commit();
+			}
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Read or write a run of a file's sectors, using one disk request for
+	 * each extent the run touches.
+	 */
+	private void transfer(Inode inode, int block, int count, byte[] buf,
+			int offset, boolean write) {
+		for (int i = 0; i < inode.numExtents && count > 0; i++) {
+			if (block >= inode.count[i]) {
+				block -= inode.count[i];
+				continue;
+			}
+
+			int run = Math.min(count, inode.count[i] - block);
+			if (write)
+				disk.writeSectors(inode.start[i] + block, run, buf, offset);
+			else
+				disk.readSectors(inode.start[i] + block, run, buf, offset);
+
+			offset += run * Disk.sectorSize;
+			count -= run;
+			block = 0;
+		}
+
+		Lib.assertTrue(count == 0, "transfer past the last extent");
+	}
+
+	private int allocatedBlocks(Inode inode) {
+		int blocks = 0;
+		for (int i = 0; i < inode.numExtents; i++)
+			blocks += inode.count[i];
+
+		return blocks;
+	}
+
+	/**
+	 * Give a file at least <i>blocks</i> sectors.
+	 *
+	 * @return <tt>false</tt> if the disk is full or the inode has run out of
+	 * extents, in which case the file keeps the sectors it did get.
+	 */
+	private boolean allocate(Inode inode, int blocks) {
+		int have = allocatedBlocks(inode);
+
+		while (have < blocks) {
+			int n = inode.numExtents;
+
+			// grow the last extent in place if possible
+			if (n > 0) {
+				int next = inode.start[n - 1] + inode.count[n - 1];
+				if (next < Disk.numSectors && !usedSectors.get(next)) {
+					usedSectors.set(next);
+					inode.count[n - 1]++;
+					have++;
+
+					inode.dirty = bitmapDirty = true;
+					continue;
+				}
+			}
+
+			if (n == maxExtents)
+				return false;
+
+			if (n == numDirectExtents && inode.indirect == 0) {
+				int indirect = usedSectors.nextClearBit(dataStart);
+				if (indirect >= Disk.numSectors)
+					return false;
+
+				usedSectors.set(indirect);
+				inode.indirect = indirect;
+				inode.dirty = bitmapDirty = true;
+			}
+
+			int start = findFreeRun(blocks - have);
+			if (start == -1)
+				return false;
+
+			usedSectors.set(start);
+			inode.start[n] = start;
+			inode.count[n] = 1;
+			inode.numExtents++;
+			have++;
+
+			inode.dirty = bitmapDirty = true;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Return the start of the first run of at least <i>length</i> free
+	 * sectors, or of the longest run if there is none that long, or -1 if the
+	 * disk is full.
+	 */
+	private int findFreeRun(int length) {
+		int best = -1, bestLength = 0;
+
+		int start = usedSectors.nextClearBit(dataStart);
+		while (start < Disk.numSectors) {
+			int end = usedSectors.nextSetBit(start);
+			if (end == -1 || end > Disk.numSectors)
+				end = Disk.numSectors;
+
+			if (end - start >= length)
+				return start;
+
+			if (end - start > bestLength) {
+				best = start;
+				bestLength = end - start;
+			}
+
+			start = usedSectors.nextClearBit(end);
+		}
+
+		return best;
+	}
+
+	private void freeExtents(Inode inode) {
+		for (int i = 0; i < inode.numExtents; i++)
+			usedSectors.clear(inode.start[i], inode.start[i] + inode.count[i]);
+
+		if (inode.indirect != 0)
+			usedSectors.clear(inode.indirect);
+
+		inode.numExtents = 0;
+		inode.indirect = 0;
+		inode.length = 0;
+
+		inode.dirty = bitmapDirty = true;
+	}
+
+	private void freeInode(Inode inode) {
+		freeExtents(inode);
+		inode.type = typeFree;
+		storeInode(inode);
+
+		inodeUsed[inode.number] = false;
+	}
+
+	private int allocateInode() {
+		for (int i = 0; i < numInodes; i++) {
+			if (!inodeUsed[i]) {
+				inodeUsed[i] = true;
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Return the in-memory inode of an open file, or load it from the disk.
+	 */
+	private Inode getInode(int number) {
+		Inode inode = inodes.get(number);
+		if (inode == null) {
+			inode = loadInode(number);
+			inodes.put(number, inode);
+		}
+
+		return inode;
+	}
+
+	private Inode loadInode(int number) {
+		byte[] data = log.read(inodeStart + number / inodesPerSector);
+		int offset = (number % inodesPerSector) * inodeSize;
+
+		Inode inode = new Inode(number);
+		inode.type = Lib.bytesToInt(data, offset);
+		inode.length = Lib.bytesToInt(data, offset + 4);
+		inode.indirect = Lib.bytesToInt(data, offset + 8);
+		inode.numExtents = Lib.bytesToInt(data, offset + 12);
+
+		for (int i = 0; i < inode.numExtents && i < numDirectExtents; i++) {
+			inode.start[i] = Lib.bytesToInt(data, offset + 16 + i * 8);
+			inode.count[i] = Lib.bytesToInt(data, offset + 20 + i * 8);
+		}
+
+		if (inode.numExtents > numDirectExtents) {
+			byte[] indirect = log.read(inode.indirect);
+			for (int i = numDirectExtents; i < inode.numExtents; i++) {
+				int entry = (i - numDirectExtents) * 8;
+				inode.start[i] = Lib.bytesToInt(indirect, entry);
+				inode.count[i] = Lib.bytesToInt(indirect, entry + 4);
+			}
+		}
+
+		return inode;
+	}
+
+	/**
+	 * Log an inode, and its indirect sector if it has one, as part of the
+	 * current operation.
+	 */
+	private void storeInode(Inode inode) {
+		int sector = inodeStart + inode.number / inodesPerSector;
+		int offset = (inode.number % inodesPerSector) * inodeSize;
+
+		byte[] data = log.read(sector);
+		Arrays.fill(data, offset, offset + inodeSize, (byte) 0);
+
+		Lib.bytesFromInt(data, offset, inode.type);
+		Lib.bytesFromInt(data, offset + 4, inode.length);
+		Lib.bytesFromInt(data, offset + 8, inode.indirect);
+		Lib.bytesFromInt(data, offset + 12, inode.numExtents);
+
+		for (int i = 0; i < inode.numExtents && i < numDirectExtents; i++) {
+			Lib.bytesFromInt(data, offset + 16 + i * 8, inode.start[i]);
+			Lib.bytesFromInt(data, offset + 20 + i * 8, inode.count[i]);
+		}
+
+		log.write(sector, data);
+
+		if (inode.numExtents > numDirectExtents) {
+			byte[] indirect = new byte[Disk.sectorSize];
+			for (int i = numDirectExtents; i < inode.numExtents; i++) {
+				int entry = (i - numDirectExtents) * 8;
+				Lib.bytesFromInt(indirect, entry, inode.start[i]);
+				Lib.bytesFromInt(indirect, entry + 4, inode.count[i]);
+			}
+
+			log.write(inode.indirect, indirect);
+		}
+
+		inode.dirty = false;
+	}
+
+	/**
+	 * Commit the current operation, logging an inode first if it changed.
+	 */
+	private void commit(Inode inode) {
+		if (inode.dirty)
+			storeInode(inode);
+
+		commit();
+	}
+
+	private void commit() {
+		if (bitmapDirty) {
+			byte[] bitmap = new byte[Disk.sectorSize];
+			for (int i = usedSectors.nextSetBit(0); i >= 0; i = usedSectors
+					.nextSetBit(i + 1))
+				bitmap[i / 8] |= 1 << (i % 8);
+
+			log.write(bitmapSector, bitmap);
+			bitmapDirty = false;
+		}
+
+		log.commit();
+	}
+
+	private static boolean isValidName(String name) {
+		int length = name.getBytes().length;
+		return length > 0 && length <= maxNameLength && name.indexOf(0) == -1;
+	}
+
+	/**
+	 * Return the directory sector a name is stored in, unless that sector
+	 * has overflowed.
+	 */
+	private static int bucketOf(String name) {
+		return (name.hashCode() & 0x7FFFFFFF) % dirSectors;
+	}
+
+	/**
+	 * Find a name in the directory.
+	 *
+	 * @return the index of its entry, or -1 if it is not there.
+	 */
+	private int findEntry(String name) {
+		int home = bucketOf(name);
+
+		for (int i = 0; i < dirSectors; i++) {
+			int bucket = (home + i) % dirSectors;
+			byte[] data = log.read(dirStart + bucket);
+
+			boolean unused = false;
+			for (int slot = 0; slot < entriesPerSector; slot++) {
+				int offset = slot * entrySize;
+				int inode = Lib.bytesToInt(data, offset);
+
+				if (inode == entryUnused)
+					unused = true;
+				else if (inode != entryDeleted
+						&& name.equals(Lib.bytesToString(data, offset + 4,
+								maxNameLength)))
+					return bucket * entriesPerSector + slot;
+			}
+
+			// a name is only stored past a bucket once the bucket is full
+			if (unused)
+				return -1;
+		}
+
+		return -1;
+	}
+
+	private boolean addEntry(String name, int number) {
+		int home = bucketOf(name);
+
+		for (int i = 0; i < dirSectors; i++) {
+			int bucket = (home + i) % dirSectors;
+			byte[] data = log.read(dirStart + bucket);
+
+			for (int slot = 0; slot < entriesPerSector; slot++) {
+				int offset = slot * entrySize;
+				int inode = Lib.bytesToInt(data, offset);
+
+				if (inode == entryUnused || inode == entryDeleted) {
+					Arrays.fill(data, offset, offset + entrySize, (byte) 0);
+					Lib.bytesFromInt(data, offset, number);
+
+					byte[] bytes = name.getBytes();
+					System.arraycopy(bytes, 0, data, offset + 4, bytes.length);
+
+					log.write(dirStart + bucket, data);
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private int entryInode(int entry) {
+		byte[] data = log.read(dirStart + entry / entriesPerSector);
+		return Lib.bytesToInt(data, (entry % entriesPerSector) * entrySize);
+	}
+
+	/**
+	 * Mark a directory entry deleted. It cannot be marked unused, because a
+	 * later lookup would then stop at its bucket.
+	 */
+	private void removeEntry(int entry) {
+		int sector = dirStart + entry / entriesPerSector;
+		byte[] data = log.read(sector);
+
+		Lib.bytesFromInt(data, (entry % entriesPerSector) * entrySize,
+				entryDeleted);
+		log.write(sector, data);
+	}
+
+	/**
+	 * The in-memory copy of an inode. Every open instance of a file shares
+	 * one.
+	 */
+	private static class Inode {
+		Inode(int number) {
+			this.number = number;
+		}
+
+		int number;
+
+		int type = typeFree;
+
+		int length = 0;
+
+		/** The sector holding the extents past the direct ones, or 0. */
+		int indirect = 0;
+
+		int numExtents = 0;
+
+		/** The first sector and the number of sectors of each extent. */
+		int[] start = new int[maxExtents], count = new int[maxExtents];
+
+		/** Whether the inode has changed since it was last logged. */
+		boolean dirty = false;
+
+		int openCount = 0;
+
+		/** Whether the file has been removed while still open. */
+		boolean removed = false;
+	}
+
+	private class NativeOpenFile extends OpenFileWithPosition {
+		NativeOpenFile(Inode inode, String name) {
+			super(NativeFileSystem.this, name);
+
+			this.inode = inode;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (inode == null)
+				return -1;
+
+			return NativeFileSystem.this.read(inode, pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (inode == null)
+				return -1;
+
+			return NativeFileSystem.this.write(inode, pos, buf, offset, length);
+		}
+
+		public int length() {
+			if (inode == null)
+				return -1;
+
+			return inode.length;
+		}
+
+		public void close() {
+			if (inode != null) {
+				NativeFileSystem.this.close(inode);
+				inode = null;
+			}
+		}
+
+		private Inode inode;
+	}
+
+	private SynchDisk disk;
+
+	private WriteAheadLog log;
+
+	/** The sectors in use, as recorded in the bitmap on the disk. */
+	private BitSet usedSectors;
+
+	/** Whether <tt>usedSectors</tt> has changed since it was last logged. */
+	private boolean bitmapDirty = false;
+
+	private boolean[] inodeUsed;
+
+	/** The inodes of the open files, by inode number. */
+	private HashMap<Integer, Inode> inodes = new HashMap<Integer, Inode>();
+
+	private int openCount = 0;
+
+	/** Allows only one operation at a time, including while it does I/O. */
+	private Lock lock;
+
+	private static final int magic = 0x4E465331;
+
+	private static final int superSector = 0, bitmapSector = 1;
+
+	private static final int logStart = 2, logLength = 17;
+
+	private static final int inodeSize = 64, numInodes = 256;
+
+	private static final int inodesPerSector = Disk.sectorSize / inodeSize;
+
+	private static final int inodeStart = logStart + logLength;
+
+	private static final int inodeSectors = numInodes / inodesPerSector;
+
+	private static final int dataStart = inodeStart + inodeSectors;
+
+	private static final int numDirectExtents = 6;
+
+	private static final int maxExtents = numDirectExtents + Disk.sectorSize
+			/ 8;
+
+	private static final int typeFree = 0, typeFile = 1, typeDirectory = 2;
+
+	private static final int rootInode = 0;
+
+	/** The directory occupies the first data sectors. */
+	private static final int dirStart = dataStart, dirSectors = 16;
+
+	private static final int entrySize = 32, maxNameLength = entrySize - 4;
+
+	private static final int entriesPerSector = Disk.sectorSize / entrySize;
+
+	/** Directory entries hold an inode number, or one of these markers. */
+	private static final int entryUnused = 0, entryDeleted = -1;
+
+	/** The file <tt>selfTest()</tt> leaves on the disk for the next boot. */
+	private static final String selfTestName = ".selftest";
+
+	private static final int selfTestLength = 2 * Disk.sectorSize + 100;
+
+	private static final char dbgFS = 'f';
+}
@@ -0,0 +1,425 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A synchronous interface to the simulated disk. A thread that reads or writes
+ * sectors sleeps until its request is done, and other threads can queue
+ * requests meanwhile. Whenever the disk becomes idle, the next request is
+ * chosen from the queue by the policy named by <tt>SynchDisk.scheduler</tt>
+ * in <tt>nachos.conf</tt>:
+ *
+ * <ul>
+ * <li><tt>fifo</tt> serves requests in the order they arrived.
+ * <li><tt>scan</tt> is the elevator algorithm: the head keeps moving in one
+ * direction, serving the nearest request ahead of it, and turns around when
+ * there are none left ahead.
+ * <li><tt>clook</tt> only serves requests while moving towards higher
+ * sectors, and jumps back to the lowest request when there are none left
+ * ahead, so that every sector waits about as long.
+ * </ul>
+ *
+ * <p>
+ * Queued requests of the same kind for adjacent sectors are merged with the
+ * chosen request into one disk request, up to
+ * <tt>SynchDisk.maxMergeSectors</tt> sectors. Requests that overlap are not
+ * ordered with respect to each other; callers that care must not issue them
+ * at the same time.
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new synchronous disk.
+	 *
+	 * @param disk the disk to use.
+	 */
+	public SynchDisk(Disk disk) {
+		this.disk = disk;
+
+		policy = Config.getString("SynchDisk.scheduler", "clook");
+		Lib.assertTrue(policy.equals("fifo") || policy.equals("scan")
+				|| policy.equals("clook"), "unknown disk scheduler " + policy);
+
+		maxMergeSectors = Config.getInteger("SynchDisk.maxMergeSectors",
+				Disk.sectorsPerTrack);
+		Lib.assertTrue(maxMergeSectors > 0);
+
+		disk.setInterruptHandler(new Runnable() {
+			public void run() {
+				requestDone();
+			}
+		});
+	}
+
+	/**
+	 * Read a sector, returning when the data is in <i>data</i>.
+	 *
+	 * @param sector the sector to read.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <i>data</i> to read into.
+	 */
+	public void readSector(int sector, byte[] data, int offset) {
+		readSectors(sector, 1, data, offset);
+	}
+
+	/**
+	 * Write a sector, returning when it is on the disk.
+	 *
+	 * @param sector the sector to write.
+	 * @param data the buffer holding the data.
+	 * @param offset the offset in <i>data</i> of the data.
+	 */
+	public void writeSector(int sector, byte[] data, int offset) {
+		writeSectors(sector, 1, data, offset);
+	}
+
+	/**
+	 * Read a run of adjacent sectors.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors to read.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <i>data</i> to read into.
+	 */
+	public void readSectors(int sector, int count, byte[] data, int offset) {
+		doRequest(new Request(false, sector, count, data, offset));
+	}
+
+	/**
+	 * Write a run of adjacent sectors.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors to write.
+	 * @param data the buffer holding the data.
+	 * @param offset the offset in <i>data</i> of the data.
+	 */
+	public void writeSectors(int sector, int count, byte[] data, int offset) {
+		doRequest(new Request(true, sector, count, data, offset));
+	}
+
+	/**
+	 * Return the name of the scheduling policy.
+	 *
+	 * @return <tt>fifo</tt>, <tt>scan</tt>, or <tt>clook</tt>.
+	 */
+	public String getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Return the number of requests made by callers.
+	 *
+	 * @return the number of requests.
+	 */
+	public int getNumRequests() {
+		return numRequests;
+	}
+
+	/**
+	 * Return the number of requests sent to the disk, after merging.
+	 *
+	 * @return the number of disk requests.
+	 */
+	public int getNumDiskRequests() {
+		return numDiskRequests;
+	}
+
+	/**
+	 * Return the total number of tracks the head has moved across to reach
+	 * requests.
+	 *
+	 * @return the seek distance.
+	 */
+	public long getSeekDistance() {
+		return seekDistance;
+	}
+
+	private void doRequest(Request request) {
+		Lib.assertTrue(request.count > 0 && request.sector >= 0
+				&& request.sector + request.count <= Disk.numSectors);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		queue.add(request);
+		numRequests++;
+
+		if (active == null)
+			startNext();
+
+		Machine.interrupt().restore(intStatus);
+
+		request.done.P();
+	}
+
+	/**
+	 * Choose the next request, merge any queued neighbours into it, and send
+	 * it to the disk. Called with interrupts disabled.
+	 */
+	private void startNext() {
+		Request first = chooseNext();
+		if (first == null)
+			return;
+
+		queue.remove(first);
+
+		active = new LinkedList<Request>();
+		active.add(first);
+		activeStart = first.sector;
+		int end = first.sector + first.count;
+
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (Iterator<Request> i = queue.iterator(); i.hasNext();) {
+				Request request = i.next();
+				if (request.write != first.write
+						|| end - activeStart + request.count > maxMergeSectors)
+					continue;
+
+				if (request.sector == end) {
+					active.addLast(request);
+					end += request.count;
+				}
+				else if (request.sector + request.count == activeStart) {
+					active.addFirst(request);
+					activeStart = request.sector;
+				}
+				else {
+					continue;
+				}
+
+				i.remove();
+				merged = true;
+			}
+		}
+
+		int count = end - activeStart;
+
+		// a request that was not merged can use the caller's buffer
+		if (active.size() == 1) {
+			activeData = first.data;
+			activeOffset = first.offset;
+		}
+		else {
+			activeData = new byte[count * Disk.sectorSize];
+			activeOffset = 0;
+
+			if (first.write) {
+				for (Request request : active)
+					System.arraycopy(request.data, request.offset, activeData,
+							(request.sector - activeStart) * Disk.sectorSize,
+							request.count * Disk.sectorSize);
+			}
+
+			Lib.debug(dbgDisk, "merged " + active.size() + " requests into "
+					+ count + " sectors at " + activeStart);
+		}
+
+		int track = Disk.trackOf(activeStart);
+		if (track != headTrack)
+			movingUp = track > headTrack;
+		seekDistance += Math.abs(track - headTrack);
+		headTrack = Disk.trackOf(end - 1);
+		headSector = end - 1;
+
+		numDiskRequests++;
+
+		if (first.write)
+			disk.writeRequest(activeStart, count, activeData, activeOffset);
+		else
+			disk.readRequest(activeStart, count, activeData, activeOffset);
+	}
+
+	/**
+	 * Return the queued request the policy wants served next, or
+	 * <tt>null</tt> if the queue is empty.
+	 */
+	private Request chooseNext() {
+		if (queue.isEmpty())
+			return null;
+
+		if (policy.equals("fifo"))
+			return queue.getFirst();
+
+		if (policy.equals("scan")) {
+			Request next = nearest(movingUp);
+			if (next == null) {
+				movingUp = !movingUp;
+				next = nearest(movingUp);
+			}
+			return next;
+		}
+
+		Request next = nearest(true);
+		if (next != null)
+			return next;
+
+		// wrap around to the lowest request
+		for (Request request : queue) {
+			if (next == null || request.sector < next.sector)
+				next = request;
+		}
+		return next;
+	}
+
+	/**
+	 * Return the queued request closest to the head in one direction, or
+	 * <tt>null</tt> if there is none.
+	 */
+	private Request nearest(boolean up) {
+		Request next = null;
+		for (Request request : queue) {
+			if (up ? request.sector < headSector : request.sector > headSector)
+				continue;
+
+			if (next == null
+					|| (up ? request.sector < next.sector
+							: request.sector > next.sector))
+				next = request;
+		}
+		return next;
+	}
+
+	/**
+	 * Called by the disk interrupt handler when the active request completes.
+	 */
+	private void requestDone() {
+		Lib.assertTrue(active != null);
+
+		for (Request request : active) {
+			if (!request.write && request.data != activeData)
+				System.arraycopy(activeData, activeOffset
+						+ (request.sector - activeStart) * Disk.sectorSize,
+						request.data, request.offset, request.count
+								* Disk.sectorSize);
+
+			request.done.V();
+		}
+
+		active = null;
+		activeData = null;
+
+		startNext();
+	}
+
+	/**
+	 * Read and write sectors from several threads at once, check that what
+	 * was written is read back, and report how long the reads took, first at
+	 * random sectors and then with the threads reading interleaved sectors.
+	 * The sectors written are restored afterwards, so that a file system on
+	 * the disk survives the test.
+	 */
+	public static void selfTest() {
+		SynchDisk synchDisk = ThreadedKernel.synchDisk;
+		if (synchDisk == null)
+			return;
+
+		// write a distinct byte to every seventh sector, saving its contents
+		int numSaved = (Disk.numSectors + 6) / 7;
+		byte[] saved = new byte[numSaved * Disk.sectorSize];
+		byte[] sector = new byte[Disk.sectorSize];
+		for (int i = 0; i < Disk.numSectors; i += 7) {
+			synchDisk.readSector(i, saved, i / 7 * Disk.sectorSize);
+			sector[0] = (byte) i;
+			synchDisk.writeSector(i, sector, 0);
+		}
+
+		timeReads(synchDisk, false);
+		timeReads(synchDisk, true);
+
+		for (int i = 0; i < Disk.numSectors; i += 7)
+			synchDisk.writeSector(i, saved, i / 7 * Disk.sectorSize);
+	}
+
+	private static void timeReads(final SynchDisk synchDisk,
+			final boolean interleaved) {
+		final int numThreads = 8, numReads = 32;
+
+		int requests = synchDisk.getNumDiskRequests();
+		long distance = synchDisk.getSeekDistance();
+		long start = Machine.timer().getTime();
+
+		KThread[] threads = new KThread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int id = t;
+			threads[t] = new KThread(new Runnable() {
+				public void run() {
+					byte[] data = new byte[Disk.sectorSize];
+					for (int i = 0; i < numReads; i++) {
+						int s = interleaved ? i * numThreads + id : Lib
+								.random(Disk.numSectors / 7) * 7;
+						synchDisk.readSector(s, data, 0);
+						Lib.assertTrue(s % 7 != 0 || data[0] == (byte) s);
+					}
+				}
+			}).setName("disk test " + t);
+			threads[t].fork();
+		}
+
+		for (int t = 0; t < numThreads; t++)
+			threads[t].join();
+
+		System.out.println("SynchDisk (" + synchDisk.getPolicy() + "): "
+				+ numThreads * numReads
+				+ (interleaved ? " interleaved" : " random") + " reads in "
+				+ (Machine.timer().getTime() - start) + " ticks, "
+				+ (synchDisk.getNumDiskRequests() - requests)
+				+ " disk requests, "
+				+ (synchDisk.getSeekDistance() - distance) + " tracks seeked");
+	}
+
+	private static class Request {
+		Request(boolean write, int sector, int count, byte[] data, int offset) {
+			this.write = write;
+			this.sector = sector;
+			this.count = count;
+			this.data = data;
+			this.offset = offset;
+		}
+
+		boolean write;
+
+		int sector, count;
+
+		byte[] data;
+
+		int offset;
+
+		/** Released when the request is done. */
+		Semaphore done = new Semaphore(0);
+	}
+
+	private Disk disk;
+
+	private String policy;
+
+	private int maxMergeSectors;
+
+	/** The requests waiting for the disk, in the order they arrived. */
+	private LinkedList<Request> queue = new LinkedList<Request>();
+
+	/** The requests the disk is handling, ordered by sector, or null. */
+	private LinkedList<Request> active = null;
+
+	/** The first sector and the buffer of the disk's current request. */
+	private int activeStart;
+
+	private byte[] activeData;
+
+	private int activeOffset;
+
+	/** Where the head is left by the last request sent to the disk. */
+	private int headSector = 0, headTrack = 0;
+
+	/** The direction the head is moving, for the elevator algorithm. */
+	private boolean movingUp = true;
+
+	private int numRequests = 0, numDiskRequests = 0;
+
+	private long seekDistance = 0;
+
+	private static final char dbgDisk = 'd';
+}
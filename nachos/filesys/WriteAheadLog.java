@@ -0,0 +1,172 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A write-ahead log that makes updates to a group of metadata sectors atomic.
+ * The sectors changed by an operation are kept in memory until the operation
+ * commits. Committing first writes them all to the log area of the disk,
+ * then writes the log header naming their home sectors, which is the point
+ * at which the operation takes effect, then copies them to their homes and
+ * clears the header. If Nachos stops before the header is cleared,
+ * <tt>recover()</tt> copies the logged sectors again the next time the disk
+ * is mounted.
+ *
+ * <p>
+ * The first sector of the log area is the header, holding the number of
+ * logged sectors followed by their home sector numbers. A write-ahead log is
+ * not synchronized; its file system only runs one operation at a time.
+ */
+public class WriteAheadLog {
+	/**
+	 * Allocate a new write-ahead log.
+	 *
+	 * @param disk the disk holding the log.
+	 * @param start the first sector of the log area.
+	 * @param length the number of sectors in the log area, including the
+	 * header.
+	 */
+	public WriteAheadLog(SynchDisk disk, int start, int length) {
+		Lib.assertTrue(length > 1 && length - 1 <= Disk.sectorSize / 4 - 1);
+
+		this.disk = disk;
+		this.start = start;
+		this.capacity = length - 1;
+	}
+
+	/**
+	 * Write an empty log header, for a newly formatted disk.
+	 */
+	public void format() {
+		disk.writeSector(start, new byte[Disk.sectorSize], 0);
+	}
+
+	/**
+	 * Install any sectors left in the log by an operation that committed but
+	 * was not finished, and clear the log.
+	 *
+	 * @return the number of sectors installed.
+	 */
+	public int recover() {
+		byte[] header = new byte[Disk.sectorSize];
+		disk.readSector(start, header, 0);
+
+		int count = Lib.bytesToInt(header, 0);
+		if (count == 0)
+			return 0;
+
+		Lib.assertTrue(count > 0 && count <= capacity, "corrupt log header");
+
+		byte[] data = new byte[count * Disk.sectorSize];
+		disk.readSectors(start + 1, count, data, 0);
+
+		for (int i = 0; i < count; i++)
+			disk.writeSector(Lib.bytesToInt(header, (i + 1) * 4), data, i
+					* Disk.sectorSize);
+
+		disk.writeSector(start, new byte[Disk.sectorSize], 0);
+
+		Lib.debug(dbgLog, "recovered " + count + " logged sectors");
+		return count;
+	}
+
+	/**
+	 * Return the current contents of a metadata sector, including changes the
+	 * current operation has not committed yet. The array returned may be
+	 * changed, but the change must then be passed to <tt>write()</tt>.
+	 *
+	 * @param sector the sector to read.
+	 * @return the contents of the sector.
+	 */
+	public byte[] read(int sector) {
+		byte[] data = pending.get(sector);
+		if (data != null)
+			return data;
+
+		data = new byte[Disk.sectorSize];
+		disk.readSector(sector, data, 0);
+		return data;
+	}
+
+	/**
+	 * Change a metadata sector as part of the current operation.
+	 *
+	 * @param sector the sector to change.
+	 * @param data the new contents of the sector.
+	 */
+	public void write(int sector, byte[] data) {
+		Lib.assertTrue(data.length == Disk.sectorSize);
+
+		pending.put(sector, data);
+		Lib.assertTrue(pending.size() <= capacity, "operation too large");
+	}
+
+	/**
+	 * Make every change of the current operation permanent, as one atomic
+	 * update.
+	 */
+	public void commit() {
+		if (pending.isEmpty())
+			return;
+
+		int count = pending.size();
+		byte[] header = new byte[Disk.sectorSize];
+		byte[] data = new byte[count * Disk.sectorSize];
+
+		Lib.bytesFromInt(header, 0, count);
+
+		int i = 0;
+		for (Map.Entry<Integer, byte[]> entry : pending.entrySet()) {
+			Lib.bytesFromInt(header, (i + 1) * 4, entry.getKey());
+			System.arraycopy(entry.getValue(), 0, data, i * Disk.sectorSize,
+					Disk.sectorSize);
+			i++;
+		}
+
+		// the logged sectors must be on the disk before the header names them
+		disk.writeSectors(start + 1, count, data, 0);
+		disk.writeSector(start, header, 0);
+
+		for (Map.Entry<Integer, byte[]> entry : pending.entrySet())
+			disk.writeSector(entry.getKey(), entry.getValue(), 0);
+
+		disk.writeSector(start, new byte[Disk.sectorSize], 0);
+
+		pending.clear();
+
+		numCommits++;
+		numLoggedSectors += count;
+	}
+
+	/**
+	 * Return the number of operations committed.
+	 *
+	 * @return the number of commits.
+	 */
+	public int getNumCommits() {
+		return numCommits;
+	}
+
+	/**
+	 * Return the number of sectors written to the log.
+	 *
+	 * @return the number of logged sectors.
+	 */
+	public int getNumLoggedSectors() {
+		return numLoggedSectors;
+	}
+
+	private SynchDisk disk;
+
+	private int start, capacity;
+
+	/** The sectors changed by the current operation, by sector number. */
+	private HashMap<Integer, byte[]> pending = new HashMap<Integer, byte[]>();
+
+	private int numCommits = 0, numLoggedSectors = 0;
+
+	private static final char dbgLog = 'f';
+}
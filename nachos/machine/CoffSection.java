@@ -36,6 +36,31 @@ public class CoffSection {
 		initialized = true;
 	}
 
+	/**
+	 * Allocate a copy of a COFF section that loads its pages from another open
+	 * instance of the same executable.
+	 * 
+	 * @param file the file containing the executable.
+	 * @param coff the loader the copy belongs to.
+	 * @param section the section to copy, which must have been loaded from
+	 * an executable.
+	 */
+	public CoffSection(OpenFile file, Coff coff, CoffSection section) {
+		Lib.assertTrue(section.file != null);
+
+		this.file = file;
+		this.coff = coff;
+
+		name = section.name;
+		executable = section.executable;
+		readOnly = section.readOnly;
+		initialized = section.initialized;
+		numPages = section.numPages;
+		firstVPN = section.firstVPN;
+		size = section.size;
+		contentOffset = section.contentOffset;
+	}
+
 	/**
 	 * Load a COFF section from an executable.
 	 * 
@@ -200,6 +225,71 @@ public class CoffSection {
 		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
 	}
 
+	/**
+	 * Load a run of pages from this segment into physical memory, reading
+	 * their contents from the executable all at once into a staging buffer
+	 * and then copying each page to its frame.
+	 *
+	 * @param spn the page number within this segment of the first page.
+	 * @param ppns the physical pages to load into, one for each page of the
+	 * run.
+	 * @param buffer the staging buffer, which must hold at least
+	 * <tt>ppns.length</tt> pages.
+	 */
+	public void loadPages(int spn, int[] ppns, byte[] buffer) {
+		// a section supplied by the autograder can only load single pages
+		if (!readPages(spn, ppns.length, buffer, 0)) {
+			for (int i = 0; i < ppns.length; i++)
+				loadPage(spn + i, ppns[i]);
+			return;
+		}
+
+		int pageSize = Processor.pageSize;
+		byte[] memory = Machine.processor().getMemory();
+		for (int i = 0; i < ppns.length; i++) {
+			Lib.assertTrue(ppns[i] >= 0
+					&& ppns[i] < Machine.processor().getNumPhysPages());
+
+			System.arraycopy(buffer, i * pageSize, memory, ppns[i] * pageSize,
+					pageSize);
+		}
+	}
+
+	/**
+	 * Read a run of pages of this segment from the executable into a buffer,
+	 * with a single read. The part of the run past the initialized data is
+	 * zero-filled.
+	 *
+	 * @param spn the page number within this segment of the first page.
+	 * @param count the number of pages to read.
+	 * @param buf the buffer to read into.
+	 * @param offset the offset in <i>buf</i> to read into.
+	 * @return <tt>false</tt> if this section was supplied by the autograder,
+	 * and so cannot be read except by <tt>loadPage()</tt>.
+	 */
+	public boolean readPages(int spn, int count, byte[] buf, int offset) {
+		Lib.assertTrue(spn >= 0 && count >= 0 && spn + count <= numPages);
+
+		if (file == null)
+			return false;
+
+		int pageSize = Processor.pageSize;
+		Lib.assertTrue(offset >= 0 && offset + count * pageSize <= buf.length);
+
+		int initlen = 0;
+		if (initialized)
+			initlen = Math.max(0, Math.min(size - spn * pageSize, count
+					* pageSize));
+
+		if (initlen > 0)
+			Lib.strictReadFile(file, contentOffset + spn * pageSize, buf,
+					offset, initlen);
+
+		Arrays.fill(buf, offset + initlen, offset + count * pageSize, (byte) 0);
+
+		return true;
+	}
+
 	/** The COFF object to which this section belongs. */
 	protected Coff coff;
 
@@ -0,0 +1,224 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * A simulated disk, divided into tracks of fixed-size sectors. The contents of
+ * the disk are kept in a file in the test directory, so they survive from one
+ * run of Nachos to the next.
+ *
+ * <p>
+ * The disk handles one request at a time. A request transfers a run of
+ * adjacent sectors, and completes with a disk interrupt after the time it
+ * takes to seek to the first sector's track, for the sector to rotate under
+ * the head, and for the run to pass under it. Seeking costs
+ * <tt>Stats.SeekTime</tt> ticks per track crossed, and one revolution takes
+ * <tt>Stats.RotationTime</tt> ticks. The data is only transferred when the
+ * request completes, so the buffer must not be touched until then.
+ */
+public final class Disk {
+	/**
+	 * Allocate a new disk.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param directory the directory holding the file that backs the disk.
+	 */
+	public Disk(Privilege privilege, File directory) {
+		System.out.print(" disk");
+
+		this.privilege = privilege;
+
+		final File f = new File(directory, Config.getString("Disk.fileName",
+				"DISK"));
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					file = new RandomAccessFile(f, "rw");
+				}
+				catch (IOException e) {
+				}
+			}
+		});
+		Lib.assertTrue(file != null, "unable to open disk file");
+
+		completionInterrupt = new Runnable() {
+			public void run() {
+				completionInterrupt();
+			}
+		};
+	}
+
+	/**
+	 * Set the callback to use as a disk interrupt handler. The handler is
+	 * called each time a request completes.
+	 *
+	 * @param handler the disk interrupt handler.
+	 */
+	public void setInterruptHandler(Runnable handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Start reading a run of sectors. The disk must not be busy.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors to read.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <i>data</i> of the first byte to read.
+	 */
+	public void readRequest(int sector, int count, byte[] data, int offset) {
+		startRequest(false, sector, count, data, offset);
+	}
+
+	/**
+	 * Start writing a run of sectors. The disk must not be busy.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors to write.
+	 * @param data the buffer holding the data to write.
+	 * @param offset the offset in <i>data</i> of the first byte to write.
+	 */
+	public void writeRequest(int sector, int count, byte[] data, int offset) {
+		startRequest(true, sector, count, data, offset);
+	}
+
+	/**
+	 * Test whether the disk is handling a request.
+	 *
+	 * @return <tt>true</tt> if a request has not completed yet.
+	 */
+	public boolean isBusy() {
+		return busy;
+	}
+
+	/**
+	 * Return the track holding a sector.
+	 *
+	 * @param sector the sector number.
+	 * @return the track the sector is on.
+	 */
+	public static int trackOf(int sector) {
+		return sector / sectorsPerTrack;
+	}
+
+	private void startRequest(boolean write, int sector, int count,
+			byte[] data, int offset) {
+		Lib.assertTrue(!busy);
+		Lib.assertTrue(count > 0 && sector >= 0
+				&& sector + count <= numSectors);
+		Lib.assertTrue(offset >= 0
+				&& offset + count * sectorSize <= data.length);
+
+		busy = true;
+		requestWrite = write;
+		requestSector = sector;
+		requestCount = count;
+		requestData = data;
+		requestOffset = offset;
+
+		long delay = computeLatency(sector, count);
+		headTrack = trackOf(sector + count - 1);
+
+		Lib.debug(dbgDisk, (write ? "writing " : "reading ") + count
+				+ " sectors at " + sector + ", latency " + delay);
+
+		privilege.interrupt.schedule(delay, "disk", completionInterrupt);
+	}
+
+	/**
+	 * Return the time it takes to seek to a sector, wait for it to rotate
+	 * under the head, and transfer a run of sectors starting there.
+	 */
+	private long computeLatency(int sector, int count) {
+		int track = trackOf(sector);
+		long seek = (long) Math.abs(track - headTrack) * Stats.SeekTime;
+
+		long arrival = privilege.stats.totalTicks + seek;
+		int position = (int) ((arrival * sectorsPerTrack / Stats.RotationTime)
+				% sectorsPerTrack);
+		int wait = (sector % sectorsPerTrack - position + sectorsPerTrack)
+				% sectorsPerTrack;
+		long rotation = (long) wait * Stats.RotationTime / sectorsPerTrack;
+
+		// moving to the next track while transferring also costs a seek
+		long transfer = (long) count * Stats.RotationTime / sectorsPerTrack
+				+ (long) (trackOf(sector + count - 1) - track) * Stats.SeekTime;
+
+		return Math.max(1, seek + rotation + transfer);
+	}
+
+	private void completionInterrupt() {
+		Lib.assertTrue(busy);
+
+		int length = requestCount * sectorSize;
+		long pos = (long) requestSector * sectorSize;
+
+		try {
+			if (requestWrite) {
+				file.seek(pos);
+				file.write(requestData, requestOffset, length);
+				privilege.stats.numDiskWrites += requestCount;
+			}
+			else {
+				int amount = 0;
+				if (pos < file.length()) {
+					file.seek(pos);
+					amount = Math.max(0, file.read(requestData, requestOffset,
+							length));
+				}
+				// sectors that were never written read as zeros
+				Arrays.fill(requestData, requestOffset + amount, requestOffset
+						+ length, (byte) 0);
+				privilege.stats.numDiskReads += requestCount;
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("disk I/O failed");
+		}
+
+		busy = false;
+		requestData = null;
+
+		if (handler != null)
+			handler.run();
+	}
+
+	/** The number of bytes in a sector. */
+	public static final int sectorSize = 512;
+
+	/** The number of sectors in a track. */
+	public static final int sectorsPerTrack = 32;
+
+	/** The number of tracks on the disk. */
+	public static final int numTracks = 64;
+
+	/** The number of sectors on the disk. */
+	public static final int numSectors = sectorsPerTrack * numTracks;
+
+	private Privilege privilege;
+
+	private RandomAccessFile file = null;
+
+	private Runnable completionInterrupt;
+
+	private Runnable handler = null;
+
+	private int headTrack = 0;
+
+	private boolean busy = false;
+
+	private boolean requestWrite;
+
+	private int requestSector, requestCount, requestOffset;
+
+	private byte[] requestData;
+
+	private static final char dbgDisk = 'd';
+}
@@ -197,6 +197,9 @@ public final class Machine {
 		if (Config.getBoolean("Machine.stubFileSystem"))
 			stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
+		if (Config.getBoolean("Machine.disk"))
+			disk = new Disk(privilege, testDirectory);
+
 		if (Config.getBoolean("Machine.networkLink"))
 			networkLink = new NetworkLink(privilege);
 	}
@@ -360,6 +363,15 @@ public final class Machine {
 		return stubFileSystem;
 	}
 
+	/**
+	 * Return the simulated disk.
+	 * 
+	 * @return the disk, or <tt>null</tt> if it is not present.
+	 */
+	public static Disk disk() {
+		return disk;
+	}
+
 	/**
 	 * Return the network link.
 	 * 
@@ -390,6 +402,8 @@ public final class Machine {
 
 	private static FileSystem stubFileSystem = null;
 
+	private static Disk disk = null;
+
 	private static NetworkLink networkLink = null;
 
 	private static AutoGrader autoGrader = null;
@@ -8,10 +8,19 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
- * operating system's file system.
+ * operating system's file system. Opening a file that is already open shares
+ * the host file of the first open, so only distinct files count against the
+ * limit on open host files. If <tt>StubFileSystem.mappedIO</tt> is set, host
+ * files are memory-mapped, so that reads and writes are copies to and from
+ * the mapping rather than host system calls. Sequential reads can be served
+ * from readahead, and small writes collected into larger ones; see
+ * <tt>StubOpenFile</tt>.
  */
 public class StubFileSystem implements FileSystem {
 	/**
@@ -23,6 +32,11 @@ public class StubFileSystem implements FileSystem {
 	public StubFileSystem(Privilege privilege, File directory) {
 		this.privilege = privilege;
 		this.directory = directory;
+
+		mappedIO = Config.getBoolean("StubFileSystem.mappedIO", false);
+		readAheadSize = Config.getInteger("StubFileSystem.readAhead", 0);
+		writeBehindSize = Config.getInteger("StubFileSystem.writeBehind", 0);
+		Lib.assertTrue(readAheadSize >= 0 && writeBehindSize >= 0);
 	}
 
 	public OpenFile open(String name, boolean truncate) {
@@ -31,24 +45,99 @@ public class StubFileSystem implements FileSystem {
 
 		delay();
 
+		HostFile hostFile = hostFiles.get(name);
+
 		try {
-			return new StubOpenFile(name, truncate);
+			if (hostFile == null) {
+				if (hostFiles.size() == maxHostFiles)
+					return null;
+
+				hostFile = mappedIO ? new MappedHostFile(name, truncate)
+						: new HostFile(name, truncate);
+				hostFiles.put(name, hostFile);
+			}
+			else if (truncate) {
+				hostFile.truncate();
+			}
 		}
 		catch (IOException e) {
 			return null;
 		}
+
+		hostFile.references++;
+		return new StubOpenFile(name, hostFile);
 	}
 	
 	public int getOpenCount() {
 		return openCount;
 	}
 
+	/**
+	 * Return the number of host files currently open. Every open instance of
+	 * the same file shares one host file.
+	 *
+	 * @return the number of open host files.
+	 */
+	public int getHostFileCount() {
+		return hostFiles.size();
+	}
+
+	/**
+	 * Write the write-behind buffer of every open host file to the host
+	 * file system, so that nothing written is lost if Nachos stops with files
+	 * still open.
+	 */
+	public void flush() {
+		for (HostFile hostFile : hostFiles.values()) {
+			if (hostFile.hasBufferedWrites()) {
+				delay();
+				hostFile.flushWrites();
+			}
+		}
+	}
+
+	/**
+	 * Test whether this file system uses readahead or write-behind, as set by
+	 * <tt>StubFileSystem.readAhead</tt> and <tt>StubFileSystem.writeBehind</tt>.
+	 *
+	 * @return <tt>true</tt> if either is enabled.
+	 */
+	public boolean isBuffered() {
+		return readAheadSize > 0 || writeBehindSize > 0;
+	}
+
+	/**
+	 * Return the number of reads that were served from a readahead buffer,
+	 * without a delay.
+	 *
+	 * @return the number of readahead hits.
+	 */
+	public int getNumReadAheadHits() {
+		return numReadAheadHits;
+	}
+
+	/**
+	 * Return the number of writes that were added to a write-behind buffer,
+	 * without a delay.
+	 *
+	 * @return the number of buffered writes.
+	 */
+	public int getNumBufferedWrites() {
+		return numBufferedWrites;
+	}
+
 	public boolean remove(String name) {
 		if (!checkName(name))
 			return false;
 
 		delay();
 
+		// files that are still open keep using the removed file, but a new
+		// file with the same name must not
+		HostFile hostFile = hostFiles.remove(name);
+		if (hostFile != null)
+			hostFile.removed = true;
+
 		FileRemover fr = new FileRemover(new File(directory, name));
 		privilege.doPrivileged(fr);
 		return fr.successful;
@@ -75,15 +164,228 @@ public class StubFileSystem implements FileSystem {
 		Lib.assertTrue(Machine.timer().getTime() >= time + amount);
 	}
 
+	/**
+	 * An open file with its own position, on a host file that it may share
+	 * with other open files.
+	 *
+	 * <p>
+	 * If <tt>StubFileSystem.readAhead</tt> is set, an open file that is read
+	 * sequentially has the I/O thread read that many bytes past the last read
+	 * in the background, and serves the following reads from them without a
+	 * delay. If <tt>StubFileSystem.writeBehind</tt> is set, adjacent small
+	 * writes are collected in the host file until they reach that many bytes,
+	 * and then written with a single delay. They are also written when the
+	 * file is read, truncated, or closed.
+	 */
 	private class StubOpenFile extends OpenFileWithPosition {
-		StubOpenFile(final String name, final boolean truncate)
-				throws IOException {
+		StubOpenFile(String name, HostFile hostFile) {
 			super(StubFileSystem.this, name);
 
-			final File f = new File(directory, name);
+			this.hostFile = hostFile;
 
-			if (openCount == maxOpenFiles)
-				throw new IOException();
+			open = true;
+			openCount++;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			if (readAheadSize > 0) {
+				int amount = readBuffered(pos, buf, offset, length);
+				if (amount != -1)
+					return amount;
+			}
+
+			delay();
+			int amount = hostFile.read(pos, buf, offset, length);
+
+			if (readAheadSize > 0 && amount > 0) {
+				boolean sequential = (pos == nextPos);
+				nextPos = pos + amount;
+
+				if (sequential && amount == length) {
+					ahead = startReadAhead(hostFile, nextPos);
+					next = null;
+				}
+			}
+
+			return amount;
+		}
+
+		/**
+		 * Serve a sequential read from the readahead buffers, waiting for the
+		 * I/O thread if it has not finished filling them.
+		 *
+		 * @return the number of bytes read, or -1 if the read must go to the
+		 * host file.
+		 */
+		private int readBuffered(int pos, byte[] buf, int offset, int length) {
+			if (pos != nextPos || pos < 0 || length <= 0 || offset < 0
+					|| offset + length > buf.length) {
+				ahead = next = null;
+				return -1;
+			}
+
+			while (ahead != null) {
+				ahead.finished.P();
+				ahead.finished.V();
+
+				// a write makes everything read ahead of it stale
+				if (ahead.generation != hostFile.generation) {
+					ahead = next = null;
+					break;
+				}
+
+				int skip = pos - ahead.pos;
+				if (skip < ahead.amount) {
+					int amount = Math.min(length, ahead.amount - skip);
+
+					// a short read would look like the end of the file
+					if (amount < length && ahead.amount == ahead.data.length)
+						break;
+
+					System.arraycopy(ahead.data, skip, buf, offset, amount);
+					nextPos = pos + amount;
+					numReadAheadHits++;
+
+					// start on the next buffer once half of this one is used
+					if (next == null && ahead.amount == ahead.data.length
+							&& (skip + amount) * 2 >= ahead.amount)
+						next = startReadAhead(hostFile, ahead.pos
+								+ ahead.amount);
+
+					return amount;
+				}
+
+				if (ahead.amount < ahead.data.length)
+					break;
+
+				ahead = next;
+				next = null;
+			}
+
+			return -1;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			if (length < writeBehindSize && pos >= 0 && offset >= 0
+					&& length >= 0 && offset + length <= buf.length) {
+				if (!hostFile.bufferWrite(pos, buf, offset, length)) {
+					delay();
+					hostFile.flushWrites();
+					hostFile.bufferWrite(pos, buf, offset, length);
+				}
+
+				numBufferedWrites++;
+				return length;
+			}
+
+			delay();
+			return hostFile.write(pos, buf, offset, length);
+		}
+
+		public int length() {
+			return hostFile.length();
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				openCount--;
+
+				if (hostFile.hasBufferedWrites()) {
+					delay();
+					hostFile.flushWrites();
+				}
+
+				ahead = next = null;
+				hostFile.release();
+			}
+		}
+
+		private HostFile hostFile;
+
+		private boolean open = false;
+
+		/** Where a sequential read would start. */
+		private int nextPos = 0;
+
+		/** The readahead being used, and the one after it, or null. */
+		private ReadAhead ahead = null, next = null;
+	}
+
+	/**
+	 * Ask the I/O thread to read part of a host file into a new buffer.
+	 */
+	private ReadAhead startReadAhead(HostFile hostFile, int pos) {
+		if (ioQueue == null) {
+			ioQueue = new SynchList();
+
+			KThread ioThread = new KThread(new Runnable() {
+				public void run() {
+					serveReadAheads();
+				}
+			}).setName("stub I/O");
+			ioThread.fork();
+		}
+
+		ReadAhead readAhead = new ReadAhead(hostFile, pos);
+
+		// the host file must stay open until the I/O thread is done with it
+		hostFile.references++;
+		ioQueue.add(readAhead);
+
+		return readAhead;
+	}
+
+	private void serveReadAheads() {
+		while (true) {
+			ReadAhead readAhead = (ReadAhead) ioQueue.removeFirst();
+
+			delay();
+			readAhead.amount = Math.max(0, readAhead.hostFile.read(
+					readAhead.pos, readAhead.data, 0, readAhead.data.length));
+
+			readAhead.hostFile.release();
+			readAhead.finished.V();
+		}
+	}
+
+	private class ReadAhead {
+		ReadAhead(HostFile hostFile, int pos) {
+			this.hostFile = hostFile;
+			this.pos = pos;
+
+			generation = hostFile.generation;
+			data = new byte[readAheadSize];
+		}
+
+		HostFile hostFile;
+
+		int pos, amount;
+
+		/** The generation of the host file when the read was asked for. */
+		int generation;
+
+		byte[] data;
+
+		/** Released when the I/O thread has filled <tt>data</tt>. */
+		Semaphore finished = new Semaphore(0);
+	}
+
+	/**
+	 * A file opened in the host file system, shared by every open instance of
+	 * the file and closed when the last of them is closed.
+	 */
+	private class HostFile {
+		HostFile(String name, final boolean truncate) throws IOException {
+			this.name = name;
+
+			final File f = new File(directory, name);
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
@@ -93,9 +395,6 @@ public class StubFileSystem implements FileSystem {
 
 			if (file == null)
 				throw new IOException();
-
-			open = true;
-			openCount++;
 		}
 
 		private void getRandomAccessFile(File f, boolean truncate) {
@@ -112,13 +411,19 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
-		public int read(int pos, byte[] buf, int offset, int length) {
-			if (!open)
-				return -1;
+		int read(int pos, byte[] buf, int offset, int length) {
+			flushWrites();
+			return readFile(pos, buf, offset, length);
+		}
 
-			try {
-				delay();
+		int write(int pos, byte[] buf, int offset, int length) {
+			flushWrites();
+			generation++;
+			return writeFile(pos, buf, offset, length);
+		}
 
+		int readFile(int pos, byte[] buf, int offset, int length) {
+			try {
 				file.seek(pos);
 				return Math.max(0, file.read(buf, offset, length));
 			}
@@ -127,13 +432,8 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
-		public int write(int pos, byte[] buf, int offset, int length) {
-			if (!open)
-				return -1;
-
+		int writeFile(int pos, byte[] buf, int offset, int length) {
 			try {
-				delay();
-
 				file.seek(pos);
 				file.write(buf, offset, length);
 				return length;
@@ -143,20 +443,72 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
-		public int length() {
+		int length() {
 			try {
-				return (int) file.length();
+				return (int) Math.max(file.length(), (long) bufferedPos
+						+ bufferedLength);
 			}
 			catch (IOException e) {
 				return -1;
 			}
 		}
 
-		public void close() {
-			if (open) {
-				open = false;
-				openCount--;
+		void truncate() throws IOException {
+			bufferedPos = bufferedLength = 0;
+			generation++;
+
+			file.setLength(0);
+		}
+
+		/**
+		 * Add a write to the write-behind buffer, if it follows the writes
+		 * already there and fits.
+		 *
+		 * @return <tt>true</tt> if the write was buffered.
+		 */
+		boolean bufferWrite(int pos, byte[] buf, int offset, int length) {
+			if (bufferedLength > 0 && pos != bufferedPos + bufferedLength)
+				return false;
+			if (bufferedLength + length > writeBehindSize)
+				return false;
+
+			if (buffered == null)
+				buffered = new byte[writeBehindSize];
+			if (bufferedLength == 0)
+				bufferedPos = pos;
+
+			System.arraycopy(buf, offset, buffered, bufferedLength, length);
+			bufferedLength += length;
+			generation++;
+
+			return true;
+		}
+
+		boolean hasBufferedWrites() {
+			return bufferedLength > 0;
+		}
+
+		/**
+		 * Write the write-behind buffer to the host file.
+		 */
+		void flushWrites() {
+			if (bufferedLength > 0) {
+				writeFile(bufferedPos, buffered, 0, bufferedLength);
+				bufferedPos = bufferedLength = 0;
 			}
+		}
+
+		/**
+		 * Drop a reference, closing the host file if it was the last one.
+		 */
+		void release() {
+			if (--references > 0)
+				return;
+
+			flushWrites();
+
+			if (!removed)
+				hostFiles.remove(name);
 
 			try {
 				file.close();
@@ -165,14 +517,122 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
-		private RandomAccessFile file = null;
+		String name;
 
-		private boolean open = false;
+		protected RandomAccessFile file = null;
+
+		/** The number of open files using this host file. */
+		int references = 0;
+
+		/** Whether the file has been removed while still open. */
+		boolean removed = false;
+
+		/** Changed by every write, so that stale readahead is not used. */
+		int generation = 0;
+
+		/** Writes not yet made to the host file, and where they go. */
+		byte[] buffered = null;
+
+		int bufferedPos = 0, bufferedLength = 0;
+	}
+
+	private class MappedHostFile extends HostFile {
+		MappedHostFile(String name, boolean truncate) throws IOException {
+			super(name, truncate);
+
+			channel = file.getChannel();
+			map(channel.size());
+		}
+
+		/**
+		 * Map the first <i>size</i> bytes of the file, making the file longer
+		 * if it is shorter than that.
+		 */
+		private void map(long size) throws IOException {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		int readFile(int pos, byte[] buf, int offset, int length) {
+			if (pos < 0 || length < 0)
+				return -1;
+
+			try {
+				// the file may have been made longer by something else
+				if ((long) pos + length > buffer.capacity())
+					map(channel.size());
+
+				int amount = Math.max(0, Math.min(length, buffer.capacity()
+						- pos));
+				if (amount > 0) {
+					buffer.position(pos);
+					buffer.get(buf, offset, amount);
+				}
+				return amount;
+			}
+			catch (IOException e) {
+				return -1;
+			}
+		}
+
+		int writeFile(int pos, byte[] buf, int offset, int length) {
+			if (pos < 0 || length < 0)
+				return -1;
+
+			try {
+				if ((long) pos + length > buffer.capacity())
+					map(Math.max((long) pos + length, channel.size()));
+
+				buffer.position(pos);
+				buffer.put(buf, offset, length);
+				return length;
+			}
+			catch (IOException e) {
+				return -1;
+			}
+		}
+
+		/**
+		 * Truncate the file, first dropping the mapping, which must not be
+		 * used once the file is shorter than it.
+		 */
+		void truncate() throws IOException {
+			map(0);
+			super.truncate();
+		}
+
+		void release() {
+			// the write-behind buffer still needs the mapping
+			if (references == 1) {
+				flushWrites();
+				buffer = null;
+			}
+
+			super.release();
+		}
+
+		private FileChannel channel;
+
+		private MappedByteBuffer buffer;
 	}
 
 	public int openCount = 0;
 
-	private static final int maxOpenFiles = 32;
+	/** Whether host files are opened as <tt>MappedHostFile</tt>s. */
+	private boolean mappedIO;
+
+	/** The open host files, by name. */
+	private HashMap<String, HostFile> hostFiles =
+			new HashMap<String, HostFile>();
+
+	private static final int maxHostFiles = 32;
+
+	/** The size of a readahead, and of a write-behind buffer, or 0. */
+	private int readAheadSize, writeBehindSize;
+
+	/** The readaheads waiting for the I/O thread, created when first used. */
+	private SynchList ioQueue = null;
+
+	private int numReadAheadHits = 0, numBufferedWrites = 0;
 
 	private Privilege privilege;
 
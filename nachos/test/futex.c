@@ -0,0 +1,76 @@
+/* futex.c
+ *    Test program for futexWait() and futexWake() between two processes.
+ *
+ *    Maps a small file, then runs a second copy of itself that maps the same
+ *    file and sleeps on a word in it until this copy sets the word and wakes
+ *    it. Both copies block in the kernel at least once. Should return 0.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define MAP	((int *) 0x100000)	/* well above the program's own pages */
+
+int zeros[2];
+
+int main(int argc, char **argv)
+{
+  int *ready = MAP, *go = MAP + 1;
+  char *args[2];
+  int fd, child, status, tries;
+
+  if (argc == 1) {
+    fd = creat("futex.dat");
+    if (fd != -1)
+      write(fd, zeros, sizeof(zeros));
+  }
+  else {
+    fd = open("futex.dat");
+  }
+
+  if (fd == -1 || mmap(fd, (char *) MAP) != sizeof(zeros)) {
+    printf("futex: unable to map futex.dat\n");
+    return 1;
+  }
+
+  if (argc > 1) {
+    /* the waiter: announce itself, then sleep until told to go */
+    *ready = 1;
+    futexWake(ready, 1);
+
+    while (*go == 0)
+      futexWait(go, 0);
+
+    close(fd);
+    return 0;
+  }
+
+  args[0] = "futex.coff";
+  args[1] = "waiter";
+  child = exec("futex.coff", 2, args);
+  if (child == -1) {
+    printf("futex: unable to run the waiter\n");
+    return 1;
+  }
+
+  while (*ready == 0)
+    futexWait(ready, 0);
+
+  /* wake the waiter before setting go, to see that it really was asleep */
+  for (tries = 1; futexWake(go, 1) == 0; tries++)
+    ;
+
+  *go = 1;
+  futexWake(go, 1);
+
+  if (join(child, &status) != 1 || status != 0) {
+    printf("futex: the waiter failed\n");
+    return 1;
+  }
+
+  printf("futex: woke the waiter after %d tries\n", tries);
+
+  close(fd);
+  unlink("futex.dat");
+  return 0;
+}
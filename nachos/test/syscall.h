@@ -25,6 +25,14 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallFork		15
+#define syscallExecStack	16
+#define syscallPread		17
+#define syscallPwrite		18
+#define syscallReadv		19
+#define syscallWritev		20
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +61,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), execStack(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -90,6 +98,16 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Like exec(), but gives the child process a stack of stackPages pages instead
+ * of the default size. A program with deep recursion or large local arrays
+ * can be given a bigger stack, and a small program a smaller one.
+ *
+ * stackPages must be at least 1 and at most 256. Otherwise, or on any error
+ * exec() would return, returns -1.
+ */
+int execStack(char *file, int argc, char *argv[], int stackPages);
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -109,6 +127,19 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a new child process that is a copy of the current process. The child
+ * starts running at the return from fork(), with the same memory contents,
+ * registers and open files as its parent. Memory is copied lazily: both
+ * processes share every page until one of them writes to it. The child's open
+ * files refer to the same files as the parent's, but have their own file
+ * positions.
+ *
+ * Returns the child's process ID in the parent, which can be passed to
+ * join(), and 0 in the child. On error, returns -1 and no child is created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -181,6 +212,52 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * Like read(), but read from the file at position offset rather than at the
+ * file position, which is left unchanged. fileDescriptor must refer to a file
+ * on disk.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred.
+ */
+int pread(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Like write(), but write to the file at position offset rather than at the
+ * file position, which is left unchanged. fileDescriptor must refer to a file
+ * on disk.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred.
+ */
+int pwrite(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * A buffer passed to readv() or writev().
+ */
+struct iovec {
+    void *base;
+    int length;
+};
+
+/**
+ * Like read(), but scatter the data over iovcnt buffers, filling each one
+ * before moving on to the next. The kernel reads up to 16 pages from the file
+ * in one operation, however many buffers they are scattered over, so a
+ * single readv() costs far less than a read() for each buffer. iovcnt must be
+ * at least 1 and at most 16.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but gather the data from iovcnt buffers, in order, writing
+ * up to 16 pages to the file in one operation. iovcnt must be at least 1 and
+ * at most 16.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -216,7 +293,12 @@ int unlink(char *name);
 
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
+ * may be as large as 0x7FFFFFFF bytes. address must be page aligned, and the
+ * map must lie above the program's own memory and not overlap another map.
+ * Pages are read from the file when they are first touched. Maps are not
+ * inherited by fork(). Processes that map the same file share its pages, so
+ * a write through one map is seen at once through the others; this is the
+ * only memory that processes share.
  * 
  * To maintain consistency, further calls to read() and write() on this file
  * descriptor will fail (returning -1) until the file descriptor is closed.
@@ -257,6 +339,35 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* USER-LEVEL SYNCHRONIZATION SYSCALLS: futexWait, futexWake
+ *
+ * These calls let user-level locks and condition variables block in the
+ * kernel instead of spinning. Waiters are queued by the physical address of
+ * the word they wait on, so processes that share memory wait on the same
+ * queue. The only memory processes share is a file they have both mapped
+ * with mmap(), so a futex used by more than one process must be a word in
+ * such a map. A word in a process's own memory, including one inherited
+ * from its parent by fork(), is seen by no other process.
+ */
+
+/**
+ * If the word at address still holds expected, put the current process to
+ * sleep until another process calls futexWake() on the same address. The
+ * comparison and the sleep happen atomically, so a wake that follows a change
+ * to the word cannot be lost. address must be word aligned.
+ *
+ * Returns 0 after being woken, or -1 if the word did not hold expected or
+ * address is invalid.
+ */
+int futexWait(int *address, int expected);
+
+/**
+ * Wake up to count processes waiting in futexWait() on address.
+ *
+ * Returns the number of processes woken, or -1 if address is invalid.
+ */
+int futexWake(int *address, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
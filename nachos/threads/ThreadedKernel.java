@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import nachos.filesys.*;
 
 /**
  * A multi-threaded OS kernel.
@@ -15,7 +16,9 @@ public class ThreadedKernel extends Kernel {
 
 	/**
 	 * Initialize this kernel. Creates a scheduler, the first thread, and an
-	 * alarm, and enables interrupts. Creates a file system if necessary.
+	 * alarm, and enables interrupts. Creates a file system if necessary, and
+	 * puts a block cache in front of it if <tt>nachos.conf</tt> asks for one.
+	 * Creates a synchronous disk if the machine has a disk.
 	 */
 	public void initialize(String[] args) {
 		// set scheduler
@@ -31,19 +34,31 @@ public class ThreadedKernel extends Kernel {
 		else
 			fileSystem = null;
 
+		if (fileSystem instanceof NativeFileSystem)
+			nativeFileSystem = (NativeFileSystem) fileSystem;
+
+		if (fileSystem != null
+				&& Config.getBoolean("ThreadedKernel.blockCache", false)) {
+			blockCache = new CachedFileSystem(fileSystem);
+			fileSystem = blockCache;
+		}
+
 		// start threading
 		new KThread(null);
 
 		alarm = new Alarm();
 
+		if (Machine.disk() != null)
+			synchDisk = new SynchDisk(Machine.disk());
+
 		Machine.interrupt().enable();
 	}
 
 	/**
 	 * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-	 * autograder never calls this method, so it is safe to put additional tests
-	 * here.
+	 * <tt>SynchList</tt>, <tt>ElevatorBank</tt>, <tt>SynchDisk</tt>, and
+	 * <tt>NativeFileSystem</tt> classes. Note that the autograder never calls
+	 * this method, so it is safe to put additional tests here.
 	 */
 	public void selfTest() {
 		KThread.selfTest();
@@ -52,6 +67,12 @@ public class ThreadedKernel extends Kernel {
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
+		if (synchDisk != null) {
+			SynchDisk.selfTest();
+		}
+		if (nativeFileSystem != null) {
+			NativeFileSystem.selfTest();
+		}
 	}
 
 	/**
@@ -62,9 +83,44 @@ public class ThreadedKernel extends Kernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel, writing back any dirty cached file blocks and
+	 * any writes the stub file system is holding back first. Prints how much
+	 * the native file system logged, if it is in use, and how the disk
+	 * requests were scheduled, if there is a disk. Never returns.
 	 */
 	public void terminate() {
+		if (blockCache != null) {
+			blockCache.flush();
+
+			System.out.println("Block cache: hits " + blockCache.getNumHits()
+					+ ", misses " + blockCache.getNumMisses()
+					+ ", write-backs " + blockCache.getNumWriteBacks());
+		}
+
+		if (Machine.stubFileSystem() instanceof StubFileSystem) {
+			StubFileSystem stub = (StubFileSystem) Machine.stubFileSystem();
+			stub.flush();
+
+			if (stub.isBuffered()) {
+				System.out.println("Stub file system: readahead hits "
+						+ stub.getNumReadAheadHits() + ", buffered writes "
+						+ stub.getNumBufferedWrites());
+			}
+		}
+
+		if (nativeFileSystem != null) {
+			System.out.println("Native file system: commits "
+					+ nativeFileSystem.getNumCommits() + ", logged sectors "
+					+ nativeFileSystem.getNumLoggedSectors());
+		}
+
+		if (synchDisk != null) {
+			System.out.println("Disk scheduler (" + synchDisk.getPolicy()
+					+ "): requests " + synchDisk.getNumRequests()
+					+ ", disk requests " + synchDisk.getNumDiskRequests()
+					+ ", tracks seeked " + synchDisk.getSeekDistance());
+		}
+
 		Machine.halt();
 	}
 
@@ -77,6 +133,15 @@ public class ThreadedKernel extends Kernel {
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
+	/** Globally accessible reference to the disk, or <tt>null</tt>. */
+	public static SynchDisk synchDisk = null;
+
+	/** The block cache in front of the file system, or <tt>null</tt>. */
+	private static CachedFileSystem blockCache = null;
+
+	/** The file system on the disk, or <tt>null</tt> if there is none. */
+	private static NativeFileSystem nativeFileSystem = null;
+
 	// dummy variables to make javac smarter
 	private static RoundRobinScheduler dummy1 = null;
 
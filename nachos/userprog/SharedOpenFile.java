@@ -0,0 +1,89 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A handle on an open file that can be duplicated. Every duplicate reads and
+ * writes the same open file, but has a position of its own, and the file is
+ * closed once the last handle on it is closed. A handle is duplicated without
+ * opening the file again by name, so the duplicate refers to the same file
+ * even if the name has since been removed or given to another file.
+ */
+public class SharedOpenFile extends OpenFileWithPosition {
+	/**
+	 * Allocate the first handle on an open file, starting at the file's
+	 * current position.
+	 *
+	 * @param file the open file, which is closed along with the last handle.
+	 */
+	public SharedOpenFile(OpenFile file) {
+		this(new Shared(file), Math.max(0, file.tell()));
+	}
+
+	private SharedOpenFile(Shared shared, int position) {
+		super(shared.file.getFileSystem(), shared.file.getName());
+
+		this.shared = shared;
+		this.position = position;
+
+		shared.handles++;
+	}
+
+	/**
+	 * Return another handle on the same open file, starting at this handle's
+	 * position.
+	 *
+	 * @return the new handle, or <tt>null</tt> if this handle is closed.
+	 */
+	public SharedOpenFile duplicate() {
+		if (shared == null)
+			return null;
+
+		return new SharedOpenFile(shared, position);
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+		if (shared == null)
+			return -1;
+
+		return shared.file.read(pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+		if (shared == null)
+			return -1;
+
+		return shared.file.write(pos, buf, offset, length);
+	}
+
+	public int length() {
+		if (shared == null)
+			return -1;
+
+		return shared.file.length();
+	}
+
+	public void close() {
+		if (shared == null)
+			return;
+
+		if (--shared.handles == 0)
+			shared.file.close();
+
+		shared = null;
+	}
+
+	/** The open file, and the number of handles still open on it. */
+	private static class Shared {
+		Shared(OpenFile file) {
+			this.file = file;
+		}
+
+		OpenFile file;
+
+		int handles = 0;
+	}
+
+	/** The file this handle refers to, or <tt>null</tt> once it is closed. */
+	private Shared shared;
+}
@@ -112,6 +112,19 @@ public class SynchConsole {
 
 	private Semaphore writeWait = new Semaphore(0);
 
+	/**
+	 * Return a new <tt>OpenFile</tt> with the same access to the console as an
+	 * existing one, which can be closed independently of it.
+	 * 
+	 * @param file a file returned by <tt>openForReading()</tt> or
+	 * <tt>openForWriting()</tt>.
+	 * @return a copy of <i>file</i>.
+	 */
+	public OpenFile duplicate(OpenFile file) {
+		File console = (File) file;
+		return new File(console.canRead, console.canWrite);
+	}
+
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
 			super(null, "SynchConsole");
@@ -4,6 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -24,6 +26,16 @@ public class UserKernel extends ThreadedKernel {
 
 		console = new SynchConsole(Machine.console());
 
+		// every physical page starts out free
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		freePages = new int[numPhysPages];
+		for (int i = 0; i < numPhysPages; i++)
+			freePages[i] = numPhysPages - 1 - i;
+		numFreePages = numPhysPages;
+		pageLock = new Lock();
+
+		processLock = new Lock();
+
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
 				exceptionHandler();
@@ -37,6 +49,8 @@ public class UserKernel extends ThreadedKernel {
 	public void selfTest() {
 		super.selfTest();
 
+		UserProcess.selfTest();
+
 		System.out.println("Testing the console device. Typed characters");
 		System.out.println("will be echoed until q is typed.");
 
@@ -112,6 +126,223 @@ public class UserKernel extends ThreadedKernel {
 		KThread.currentThread().finish();
 	}
 
+	/**
+	 * Assign a new process ID. Process IDs are never reused, and the first
+	 * process created receives ID <tt>0</tt>.
+	 * 
+	 * @return the new process ID.
+	 */
+	public static int newProcessID() {
+		processLock.acquire();
+		int pid = nextProcessID++;
+		processLock.release();
+
+		return pid;
+	}
+
+	/**
+	 * Add a newly loaded process to the process table. The first process
+	 * added becomes the root process.
+	 * 
+	 * @param pid the process's ID.
+	 * @param process the process to add.
+	 */
+	public static void addProcess(int pid, UserProcess process) {
+		processLock.acquire();
+		processTable.put(pid, process);
+		if (rootProcessID == -1)
+			rootProcessID = pid;
+		processLock.release();
+	}
+
+	/**
+	 * Return the ID of the root process, the first one to start running. It
+	 * is not always <tt>0</tt>, since processes that are created but never
+	 * run, such as those of the load benchmark, also take IDs.
+	 * 
+	 * @return the root process's ID, or <tt>-1</tt> if no process has
+	 * started.
+	 */
+	public static int getRootProcessID() {
+		return rootProcessID;
+	}
+
+	/**
+	 * Remove an exiting process from the process table.
+	 * 
+	 * @param pid the ID of the exiting process.
+	 * @return <tt>true</tt> if no other processes remain.
+	 */
+	public static boolean removeProcess(int pid) {
+		processLock.acquire();
+
+		Lib.assertTrue(processTable.remove(pid) != null);
+		boolean last = processTable.isEmpty();
+
+		processLock.release();
+
+		return last;
+	}
+
+	/**
+	 * Allocate the specified number of physical pages. Either all of the pages
+	 * are allocated or none are.
+	 * 
+	 * @param count the number of pages to allocate.
+	 * @return the physical page numbers of the allocated pages, or
+	 * <tt>null</tt> if there are not enough free pages.
+	 */
+	public static int[] allocatePages(int count) {
+		Lib.assertTrue(count >= 0);
+
+		pageLock.acquire();
+
+		if (count > numFreePages) {
+			pageLock.release();
+			return null;
+		}
+
+		int[] ppns = new int[count];
+		for (int i = 0; i < count; i++)
+			ppns[i] = freePages[--numFreePages];
+
+		pageLock.release();
+
+		return ppns;
+	}
+
+	/**
+	 * Allocate a run of physically contiguous free pages, so that they can be
+	 * initialized together. Each page of the run is freed separately with
+	 * <tt>freePage()</tt>.
+	 * 
+	 * @param count the number of pages to allocate.
+	 * @return the physical page number of the first page of the run, or
+	 * <tt>-1</tt> if no run of <i>count</i> free pages exists.
+	 */
+	public static int allocateContiguousPages(int count) {
+		Lib.assertTrue(count > 0);
+
+		pageLock.acquire();
+
+		boolean[] free = new boolean[freePages.length];
+		for (int i = 0; i < numFreePages; i++)
+			free[freePages[i]] = true;
+
+		int first = -1;
+		for (int ppn = 0, run = 0; ppn < free.length; ppn++) {
+			run = free[ppn] ? run + 1 : 0;
+			if (run == count) {
+				first = ppn - count + 1;
+				break;
+			}
+		}
+
+		// take the run out of the free list, keeping the others in order
+		if (first != -1) {
+			int j = 0;
+			for (int i = 0; i < numFreePages; i++) {
+				if (freePages[i] < first || freePages[i] >= first + count)
+					freePages[j++] = freePages[i];
+			}
+			numFreePages = j;
+		}
+
+		pageLock.release();
+
+		return first;
+	}
+
+	/**
+	 * Return a physical page allocated by <tt>allocatePages()</tt> to the free
+	 * list.
+	 * 
+	 * @param ppn the physical page number to free.
+	 */
+	public static void freePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < freePages.length);
+
+		pageLock.acquire();
+
+		Lib.assertTrue(numFreePages < freePages.length);
+		freePages[numFreePages++] = ppn;
+
+		pageLock.release();
+	}
+
+	/**
+	 * Return the number of physical pages that are currently free.
+	 * 
+	 * @return the number of free physical pages.
+	 */
+	public static int getNumFreePages() {
+		return numFreePages;
+	}
+
+	/**
+	 * Atomically check that the word at the specified physical address still
+	 * holds the expected value, and if so put the current thread to sleep on
+	 * the futex queue for that address.
+	 * 
+	 * @param paddr the word-aligned physical address to wait on.
+	 * @param expected the value the word must hold for the thread to sleep.
+	 * @return <tt>0</tt> after being woken, or <tt>-1</tt> if the word did not
+	 * hold the expected value.
+	 */
+	public static int futexWait(int paddr, int expected) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		byte[] memory = Machine.processor().getMemory();
+		if (Lib.bytesToInt(memory, paddr) != expected) {
+			Machine.interrupt().restore(intStatus);
+			return -1;
+		}
+
+		FutexQueue futex = futexQueues.get(paddr);
+		if (futex == null) {
+			futex = new FutexQueue();
+			futexQueues.put(paddr, futex);
+		}
+
+		futex.waiters++;
+		futex.queue.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+		return 0;
+	}
+
+	/**
+	 * Wake up to <i>count</i> threads sleeping on the futex queue for the
+	 * specified physical address. The queue is discarded once it is empty.
+	 * 
+	 * @param paddr the physical address to wake waiters on.
+	 * @param count the maximum number of threads to wake.
+	 * @return the number of threads woken.
+	 */
+	public static int futexWake(int paddr, int count) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int woken = 0;
+		FutexQueue futex = futexQueues.get(paddr);
+		if (futex != null) {
+			while (woken < count && futex.waiters > 0) {
+				KThread thread = futex.queue.nextThread();
+				Lib.assertTrue(thread != null);
+				thread.ready();
+
+				futex.waiters--;
+				woken++;
+			}
+
+			if (futex.waiters == 0)
+				futexQueues.remove(paddr);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return woken;
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
@@ -122,6 +353,41 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** The running processes, keyed by process ID. */
+	private static HashMap<Integer, UserProcess> processTable =
+		new HashMap<Integer, UserProcess>();
+
+	private static int nextProcessID = 0;
+
+	private static int rootProcessID = -1;
+
+	/** Protects the process table. */
+	private static Lock processLock;
+
+	/**
+	 * Stack of free physical page numbers. The first <tt>numFreePages</tt>
+	 * entries are free, so allocating or freeing a page takes constant time.
+	 */
+	private static int[] freePages;
+
+	private static int numFreePages;
+
+	/** Protects the free page stack. */
+	private static Lock pageLock;
+
+	/**
+	 * The threads blocked in <tt>futexWait()</tt> on a single physical address.
+	 */
+	private static class FutexQueue {
+		ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+		int waiters = 0;
+	}
+
+	/** Futex wait queues, keyed by physical address. */
+	private static HashMap<Integer, FutexQueue> futexQueues =
+		new HashMap<Integer, FutexQueue>();
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 }
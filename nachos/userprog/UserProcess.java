@@ -6,6 +6,10 @@ import nachos.userprog.*;
 import nachos.vm.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -24,10 +28,10 @@ public class UserProcess {
 	 * Allocate a new process.
 	 */
 	public UserProcess() {
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
-		for (int i = 0; i < numPhysPages; i++)
-			pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
+		pid = UserKernel.newProcessID();
+
+		fileTable[fdStandardInput] = UserKernel.console.openForReading();
+		fileTable[fdStandardOutput] = UserKernel.console.openForWriting();
 	}
 
 	/**
@@ -66,12 +70,24 @@ public class UserProcess {
 		if (!load(name, args))
 			return false;
 
-		thread = new UThread(this);
-		thread.setName(name).fork();
+		start(name);
 
 		return true;
 	}
 
+	/**
+	 * Add this process to the process table and start running it in a new
+	 * user thread. The program must already be in memory.
+	 * 
+	 * @param name the name to give the thread.
+	 */
+	protected void start(String name) {
+		UserKernel.addProcess(pid, this);
+
+		thread = new UThread(this);
+		thread.setName(name).fork();
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -132,7 +148,8 @@ public class UserProcess {
 	 * This method handles address translation details. This method must
 	 * <i>not</i> destroy the current process if an error occurs, but instead
 	 * should return the number of bytes successfully copied (or zero if no data
-	 * could be copied).
+	 * could be copied). Each page is translated once and copied as a single
+	 * run; the transfer stops at the first page that cannot be accessed.
 	 * 
 	 * @param vaddr the first byte of virtual memory to read.
 	 * @param data the array where the data will be stored.
@@ -147,12 +164,20 @@ public class UserProcess {
 
 		byte[] memory = Machine.processor().getMemory();
 
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(memory, vaddr, data, offset, amount);
+		int amount = 0;
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr + amount);
+			int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+			int ppn = translatePage(vpn, false);
+			if (ppn == -1)
+				break;
+
+			int paddr = ppn * pageSize + pageOffset;
+			int chunk = Math.min(length - amount, pageSize - pageOffset);
+			System.arraycopy(memory, paddr, data, offset + amount, chunk);
+			releasePage(vpn);
+			amount += chunk;
+		}
 
 		return amount;
 	}
@@ -174,7 +199,8 @@ public class UserProcess {
 	 * This method handles address translation details. This method must
 	 * <i>not</i> destroy the current process if an error occurs, but instead
 	 * should return the number of bytes successfully copied (or zero if no data
-	 * could be copied).
+	 * could be copied). Each page is translated once and copied as a single
+	 * run; the transfer stops at the first page that cannot be accessed.
 	 * 
 	 * @param vaddr the first byte of virtual memory to write.
 	 * @param data the array containing the data to transfer.
@@ -189,16 +215,79 @@ public class UserProcess {
 
 		byte[] memory = Machine.processor().getMemory();
 
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(data, offset, memory, vaddr, amount);
+		int amount = 0;
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr + amount);
+			int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+			int ppn = translatePage(vpn, true);
+			if (ppn == -1)
+				break;
+
+			int paddr = ppn * pageSize + pageOffset;
+			int chunk = Math.min(length - amount, pageSize - pageOffset);
+			System.arraycopy(data, offset + amount, memory, paddr, chunk);
+			releasePage(vpn);
+			amount += chunk;
+		}
 
 		return amount;
 	}
 
+	/**
+	 * Translate a virtual page of this process into a physical page for an
+	 * access by the kernel. Sets the page's used bit, and also its dirty bit if
+	 * <i>writing</i> is <tt>true</tt>, just as the processor would. The page
+	 * stays at the returned physical page until <tt>releasePage()</tt> is
+	 * called for it.
+	 * 
+	 * @param vpn the virtual page to translate.
+	 * @param writing <tt>true</tt> if the page will be written.
+	 * @return the physical page number, or <tt>-1</tt> if the page is not
+	 * mapped or if <i>writing</i> is <tt>true</tt> and the page is read-only.
+	 */
+	protected int translatePage(int vpn, boolean writing) {
+		if (pageTable == null || vpn < 0 || vpn >= pageTable.length)
+			return -1;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid || (writing && entry.readOnly))
+			return -1;
+
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		return entry.ppn;
+	}
+
+	/**
+	 * Release a page translated by <tt>translatePage()</tt>, allowing it to
+	 * be moved out of physical memory again. Every successful translation must
+	 * be released exactly once. Pages never move in this implementation, so
+	 * this does nothing.
+	 * 
+	 * @param vpn the virtual page to release.
+	 */
+	protected void releasePage(int vpn) {
+	}
+
+	/**
+	 * Translate a virtual address in this process into a physical address.
+	 * Like <tt>translatePage()</tt>, the page must later be released. The
+	 * address is only read through, so it may lie in a read-only page.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @return the physical address, or <tt>-1</tt> if <i>vaddr</i> is not
+	 * mapped.
+	 */
+	protected int translateAddress(int vaddr) {
+		int ppn = translatePage(Processor.pageFromAddress(vaddr), false);
+		if (ppn == -1)
+			return -1;
+
+		return ppn * pageSize + Processor.offsetFromAddress(vaddr);
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -212,32 +301,21 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
+		OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+		if (file == null) {
 			Lib.debug(dbgProcess, "\topen failed");
 			return false;
 		}
 
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
+		// a child created by fork() gets its own handle on the same file
+		executable = new SharedOpenFile(file);
+		coff = openExecutable(name, executable);
+		if (coff == null)
 			return false;
-		}
 
-		// make sure the sections are contiguous and start at page 0
-		numPages = 0;
-		for (int s = 0; s < coff.getNumSections(); s++) {
-			CoffSection section = coff.getSection(s);
-			if (section.getFirstVPN() != numPages) {
-				coff.close();
-				Lib.debug(dbgProcess, "\tfragmented executable");
-				return false;
-			}
-			numPages += section.getLength();
-		}
+		// the sections are contiguous and start at page 0
+		CoffSection lastSection = coff.getSection(coff.getNumSections() - 1);
+		numPages = lastSection.getFirstVPN() + lastSection.getLength();
 
 		// make sure the argv array will fit in one page
 		byte[][] argv = new byte[args.length][];
@@ -263,29 +341,234 @@ public class UserProcess {
 		// and finally reserve 1 page for arguments
 		numPages++;
 
+		findSnapshot();
+
 		if (!loadSections())
 			return false;
 
-		// store arguments in last page
+		// store arguments in last page, building the argv array and the
+		// strings it points to in one buffer that is written all at once
 		int entryOffset = (numPages - 1) * pageSize;
-		int stringOffset = entryOffset + args.length * 4;
+		int stringOffset = args.length * 4;
 
 		this.argc = args.length;
 		this.argv = entryOffset;
 
+		byte[] argPage = new byte[argsSize];
 		for (int i = 0; i < argv.length; i++) {
-			byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-			Lib.assertTrue(writeVirtualMemory(entryOffset, stringOffsetBytes) == 4);
-			entryOffset += 4;
-			Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) == argv[i].length);
-			stringOffset += argv[i].length;
-			Lib.assertTrue(writeVirtualMemory(stringOffset, new byte[] { 0 }) == 1);
-			stringOffset += 1;
+			Lib.bytesFromInt(argPage, i * 4, entryOffset + stringOffset);
+			System.arraycopy(argv[i], 0, argPage, stringOffset, argv[i].length);
+			stringOffset += argv[i].length + 1;
+		}
+		Lib.assertTrue(writeVirtualMemory(entryOffset, argPage) == argsSize);
+
+		return true;
+	}
+
+	/**
+	 * Find the snapshot of this process's executable's initialized pages,
+	 * starting an empty one if there is none. The snapshot is kept with the
+	 * cached headers <tt>openExecutable()</tt> loaded the process from, so it
+	 * is dropped along with them whenever the file is written to.
+	 *
+	 * <p>
+	 * A snapshot is filled in lazily: each page is added the first time any
+	 * process running the executable reads it from the file, so taking a
+	 * snapshot costs no reads that loading the process would not do anyway,
+	 * and a demand-paged process only reads the pages it touches.
+	 */
+	protected void findSnapshot() {
+		CachedExecutable cached = cachedExecutable;
+		if (cached == null || !useSnapshots)
+			return;
+
+		executableLock.acquire();
+
+		if (cached.snapshot == null) {
+			// every page below the trailing uninitialized sections
+			int numSnapshotPages = 0;
+			for (int s = 0; s < coff.getNumSections(); s++) {
+				CoffSection section = coff.getSection(s);
+				if (section.isInitialzed())
+					numSnapshotPages = section.getFirstVPN()
+							+ section.getLength();
+			}
+
+			cached.snapshot = new Snapshot(numSnapshotPages);
+		}
+		snapshot = cached.snapshot;
+
+		executableLock.release();
+
+		Lib.debug(dbgProcess, "\tusing snapshot " + cached.id + " ("
+				+ snapshot.numLoaded + " of " + snapshot.loaded.length
+				+ " pages)");
+	}
+
+	/**
+	 * Fill a frame with a page of this process's snapshot.
+	 * 
+	 * @param vpn the virtual page to load.
+	 * @param ppn the frame to load it into.
+	 * @return <tt>false</tt> if the page is not in the snapshot yet, in which
+	 * case the frame is not changed.
+	 */
+	protected boolean loadSnapshotPage(int vpn, int ppn) {
+		if (snapshot == null || vpn >= snapshot.loaded.length
+				|| !snapshot.loaded[vpn])
+			return false;
+
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(snapshot.pages, vpn * pageSize, memory, ppn
+				* pageSize, pageSize);
+
+		return true;
+	}
+
+	/**
+	 * Add a page that has just been read from the executable to this
+	 * process's snapshot, if it belongs there and is not already in it.
+	 * 
+	 * @param vpn the virtual page that was read.
+	 * @param ppn the frame holding it, which must not have been written yet.
+	 */
+	protected void saveSnapshotPage(int vpn, int ppn) {
+		if (snapshot == null || vpn >= snapshot.loaded.length
+				|| snapshot.loaded[vpn])
+			return;
+
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, ppn * pageSize, snapshot.pages, vpn
+				* pageSize, pageSize);
+
+		snapshot.loaded[vpn] = true;
+		snapshot.numLoaded++;
+	}
+
+	/**
+	 * Return a loader for the executable this process will run. The headers
+	 * of an executable that was loaded before, and has not been written to
+	 * since, are not read or checked again; the loader is made from the ones
+	 * parsed the first time. The file is closed if it is not a valid
+	 * executable.
+	 * 
+	 * @param name the name of the executable.
+	 * @param executable the open executable.
+	 * @return the loader, or <tt>null</tt> if the executable is corrupt or its
+	 * sections are not contiguous from page 0.
+	 */
+	protected Coff openExecutable(String name, OpenFile executable) {
+		executableLock.acquire();
+		CachedExecutable cached = executableCache.get(name);
+		executableLock.release();
+
+		try {
+			if (cached != null && cached.length == executable.length()) {
+				Lib.debug(dbgProcess, "\tusing cached headers of " + name);
+				Coff coff = cached.image.reopen(executable);
+				cachedExecutable = cached;
+				return coff;
+			}
+
+			Coff image = new Coff(executable);
+
+			// make sure the sections are contiguous and start at page 0
+			int numSectionPages = 0;
+			for (int s = 0; s < image.getNumSections(); s++) {
+				CoffSection section = image.getSection(s);
+				if (section.getFirstVPN() != numSectionPages) {
+					image.close();
+					Lib.debug(dbgProcess, "\tfragmented executable");
+					return null;
+				}
+				numSectionPages += section.getLength();
+			}
+
+			executableLock.acquire();
+			cached = new CachedExecutable(nextExecutableID++, executable
+					.length(), image);
+			executableCache.put(name, cached);
+			executableLock.release();
+
+			// the image is kept in the cache, so the process gets a copy
+			Coff coff = image.reopen(executable);
+			cachedExecutable = cached;
+			return coff;
 		}
+		catch (EOFException e) {
+			executable.close();
+			Lib.debug(dbgProcess, "\tcoff load failed");
+			return null;
+		}
+	}
+
+	/**
+	 * Give this new process the executable image another process is running,
+	 * for a child created by <tt>fork()</tt>. The executable is not looked up
+	 * by name again: the child gets a handle on the parent's open file, and
+	 * the parent's cached headers and snapshot, so that it pages in exactly
+	 * what the parent was loaded from, even if the file has since been
+	 * rewritten or removed.
+	 *
+	 * @param parent the process to copy.
+	 * @return <tt>true</tt> if successful.
+	 */
+	protected boolean forkExecutable(UserProcess parent) {
+		SharedOpenFile file = parent.executable.duplicate();
+		try {
+			coff = parent.coff.reopen(file);
+		}
+		catch (EOFException e) {
+			file.close();
+			return false;
+		}
+
+		executable = file;
+		cachedExecutable = parent.cachedExecutable;
+		snapshot = parent.snapshot;
+
+		numPages = parent.numPages;
+		stackPages = parent.stackPages;
 
 		return true;
 	}
 
+	/**
+	 * Return a number that identifies the contents of this process's
+	 * executable. Processes running the same name get different numbers if
+	 * the file was written to, replaced or removed in between.
+	 * 
+	 * @return the identifier, or <tt>-1</tt> if no executable is loaded.
+	 */
+	protected int getExecutableID() {
+		return (cachedExecutable == null) ? -1 : cachedExecutable.id;
+	}
+
+	/**
+	 * Forget the cached headers of an executable, because it is being
+	 * written to, replaced or removed. Processes already running it keep
+	 * using their copy.
+	 * 
+	 * @param name the name of the file.
+	 */
+	protected static void forgetExecutable(String name) {
+		executableLock.acquire();
+		executableCache.remove(name);
+		executableLock.release();
+	}
+
+	/**
+	 * Forget the cached headers of the executable open on a file that has
+	 * been written to. Nothing is done for the console or another stream,
+	 * since it cannot hold an executable.
+	 * 
+	 * @param file the file that was written.
+	 */
+	protected static void forgetExecutable(OpenFile file) {
+		if (file.getFileSystem() != null)
+			forgetExecutable(file.getName());
+	}
+
 	/**
 	 * Allocates memory for this process, and loads the COFF sections into
 	 * memory. If this returns successfully, the process will definitely be run
@@ -294,12 +577,40 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		if (numPages > Machine.processor().getNumPhysPages()) {
+		// the uninitialized sections at the end of the program, the stack and
+		// the argument page all start out zeroed
+		int firstZeroVPN = numPages - stackPages - 1;
+		for (int s = coff.getNumSections() - 1; s >= 0; s--) {
+			CoffSection section = coff.getSection(s);
+			if (section.isInitialzed())
+				break;
+
+			firstZeroVPN = section.getFirstVPN();
+		}
+		int numZeroPages = numPages - firstZeroVPN;
+
+		// give the zeroed pages one run of frames, if there is one, so that
+		// they can be cleared all at once
+		int zeroPPN = UserKernel.allocateContiguousPages(numZeroPages);
+		int[] ppns = UserKernel.allocatePages((zeroPPN == -1) ? numPages
+				: firstZeroVPN);
+		if (ppns == null) {
+			for (int i = 0; zeroPPN != -1 && i < numZeroPages; i++)
+				UserKernel.freePage(zeroPPN + i);
+
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
 
+		pageTable = new TranslationEntry[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			int ppn = (vpn < ppns.length) ? ppns[vpn] : zeroPPN + vpn
+					- firstZeroVPN;
+			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false,
+					false, false);
+		}
+
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
@@ -307,11 +618,60 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 					+ " section (" + section.getLength() + " pages)");
 
+			int numLoadPages = Math.max(0, Math.min(section.getLength(),
+					firstZeroVPN - section.getFirstVPN()));
+			int[] loadPPNs = new int[numLoadPages];
+
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 
-				// for now, just assume virtual addresses=physical addresses
-				section.loadPage(i, vpn);
+				pageTable[vpn].readOnly = section.isReadOnly();
+				if (i < numLoadPages)
+					loadPPNs[i] = pageTable[vpn].ppn;
+			}
+
+			// take what the snapshot has, and read the rest from the file
+			int first = 0;
+			while (first < numLoadPages && loadSnapshotPage(section
+					.getFirstVPN() + first, loadPPNs[first]))
+				first++;
+
+			if (first == numLoadPages)
+				continue;
+
+			if (loadWholeSections) {
+				int[] readPPNs = Arrays.copyOfRange(loadPPNs, first,
+						numLoadPages);
+
+				stagingLock.acquire();
+				if (stagingBuffer.length < readPPNs.length * pageSize)
+					stagingBuffer = new byte[readPPNs.length * pageSize];
+
+				section.loadPages(first, readPPNs, stagingBuffer);
+				stagingLock.release();
+			}
+			else {
+				for (int i = first; i < numLoadPages; i++)
+					section.loadPage(i, loadPPNs[i]);
+			}
+
+			for (int i = first; i < numLoadPages; i++)
+				saveSnapshotPage(section.getFirstVPN() + i, loadPPNs[i]);
+		}
+
+		// the zeroed pages may hold another process's data
+		Lib.debug(dbgProcess, "\tzeroing " + numZeroPages + " pages "
+				+ ((zeroPPN == -1) ? "one at a time" : "from ppn " + zeroPPN));
+
+		byte[] memory = Machine.processor().getMemory();
+		if (zeroPPN != -1) {
+			Arrays.fill(memory, zeroPPN * pageSize, (zeroPPN + numZeroPages)
+					* pageSize, (byte) 0);
+		}
+		else {
+			for (int vpn = firstZeroVPN; vpn < numPages; vpn++) {
+				int paddr = pageTable[vpn].ppn * pageSize;
+				Arrays.fill(memory, paddr, paddr + pageSize, (byte) 0);
 			}
 		}
 
@@ -322,6 +682,86 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		if (pageTable == null)
+			return;
+
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			if (pageTable[vpn].valid) {
+				UserKernel.freePage(pageTable[vpn].ppn);
+				pageTable[vpn].valid = false;
+			}
+		}
+	}
+
+	/**
+	 * Measure how long it takes to load each of the executables named by
+	 * <tt>UserProcess.loadBenchmark</tt> in <tt>nachos.conf</tt>, a
+	 * comma-separated list such as <tt>halt.coff,sh.coff,matmult.coff</tt>,
+	 * first reading them a page at a time and then a section at a time, both
+	 * without cached headers, then once more with the headers cached by the
+	 * last load, and finally from a snapshot. Does nothing if the key is not
+	 * set.
+	 */
+	public static void selfTest() {
+		String programs = Config.getString("UserProcess.loadBenchmark", null);
+		if (programs == null)
+			return;
+
+		boolean wholeSections = loadWholeSections, snapshots = useSnapshots;
+
+		for (String name : programs.split(",")) {
+			forgetExecutable(name);
+			long pageTicks = timeLoad(name, false, false);
+			forgetExecutable(name);
+			long sectionTicks = timeLoad(name, true, false);
+			long cachedTicks = timeLoad(name, true, false);
+
+			// the first load with snapshots takes the snapshot
+			timeLoad(name, true, true);
+			long snapshotTicks = timeLoad(name, true, true);
+
+			if (pageTicks == -1 || sectionTicks == -1 || cachedTicks == -1
+					|| snapshotTicks == -1) {
+				System.out.println("exec " + name + ": could not load");
+				continue;
+			}
+
+			System.out.println("exec " + name + ": " + pageTicks
+					+ " ticks a page at a time, " + sectionTicks
+					+ " ticks a section at a time, " + cachedTicks
+					+ " ticks with cached headers, " + snapshotTicks
+					+ " ticks from a snapshot");
+		}
+
+		loadWholeSections = wholeSections;
+		useSnapshots = snapshots;
+	}
+
+	/**
+	 * Load an executable into a new process, then discard the process without
+	 * running it.
+	 *
+	 * @return the number of ticks the load took, or <tt>-1</tt> if it failed.
+	 */
+	private static long timeLoad(String name, boolean wholeSections,
+			boolean snapshots) {
+		loadWholeSections = wholeSections;
+		useSnapshots = snapshots;
+
+		UserProcess process = newUserProcess();
+		long start = Machine.timer().getTime();
+		boolean loaded = process.load(name, new String[] { name });
+		long ticks = Machine.timer().getTime() - start;
+
+		process.closeFiles();
+
+		if (!loaded)
+			return -1;
+
+		process.unloadSections();
+		process.coff.close();
+
+		return ticks;
 	}
 
 	/**
@@ -348,13 +788,18 @@ public class UserProcess {
 	}
 
 	/**
-	 * Handle the halt() system call.
+	 * Handle the halt() system call. Only the root process may halt the
+	 * machine; the call is ignored in any other process. The kernel is
+	 * terminated rather than the machine halted directly, so that it can
+	 * write back cached data and release its resources first.
 	 */
 	private int handleHalt() {
+		if (pid != UserKernel.getRootProcessID())
+			return 0;
 
-		Machine.halt();
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
@@ -368,16 +813,519 @@ public class UserProcess {
 		// can grade your implementation.
 
 		Lib.debug(dbgProcess, "UserProcess.handleExit (" + status + ")");
-		// for now, unconditionally terminate with just one process
-		Kernel.kernel.terminate();
 
+		closeFiles();
+
+		unloadSections();
+		coff.close();
+
+		// the exit statuses of children that were never joined are reclaimed
+		children.clear();
+
+		exitStatus.exit(status, !killed);
+
+		if (UserKernel.removeProcess(pid))
+			Kernel.kernel.terminate();
+
+		KThread.finish();
+
+		Lib.assertNotReached("KThread.finish() did not finish thread!");
 		return 0;
 	}
 
-	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
-			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
-			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+	/**
+	 * Handle the exec() and execStack() system calls.
+	 */
+	private int handleExec(int fileAddr, int argc, int argvAddr,
+			int stackPages) {
+		String name = readVirtualMemoryString(fileAddr, maxFileNameLength);
+		if (name == null || !name.endsWith(".coff") || argc < 0
+				|| argc > maxExecArgs || stackPages < 1
+				|| stackPages > maxStackPages)
+			return -1;
+
+		String[] args = new String[argc];
+		byte[] pointer = new byte[4];
+		for (int i = 0; i < argc; i++) {
+			if (readVirtualMemory(argvAddr + i * 4, pointer) < 4)
+				return -1;
+
+			args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0),
+					maxFileNameLength);
+			if (args[i] == null)
+				return -1;
+		}
+
+		UserProcess child = newUserProcess();
+		child.stackPages = stackPages;
+
+		// the child may exit before execute() returns, so its status must
+		// already be in place
+		ExitStatus status = child.exitStatus;
+		if (!child.execute(name, args)) {
+			child.closeFiles();
+			return -1;
+		}
+
+		children.put(child.pid, status);
+		return child.pid;
+	}
+
+	/**
+	 * Make a newly created process a child of this process, so that this
+	 * process can join it. Must be called before the child starts running.
+	 * 
+	 * @param child the new process.
+	 */
+	protected void addChild(UserProcess child) {
+		children.put(child.pid, child.exitStatus);
+	}
+
+	/**
+	 * Handle the join() system call. Blocks until the child has exited, then
+	 * disowns it so that its exit status can be reclaimed.
+	 */
+	private int handleJoin(int childPid, int statusAddr) {
+		ExitStatus status = children.remove(childPid);
+		if (status == null)
+			return -1;
+
+		status.waitForExit();
+
+		if (writeVirtualMemory(statusAddr, Lib.bytesFromInt(status.status)) < 4)
+			return -1;
+
+		return status.normal ? 1 : 0;
+	}
+
+	/**
+	 * Handle the futexWait() system call.
+	 */
+	private int handleFutexWait(int vaddr, int expected) {
+		if (vaddr % 4 != 0)
+			return -1;
+
+		// a process writing to a page it shares copy-on-write with this one
+		// is given the copy, so the word stays where the waiter is queued
+		int paddr = translateAddress(vaddr);
+		if (paddr == -1)
+			return -1;
+
+		// keep the word in place while waiting, since waiters are keyed by it
+		int result = UserKernel.futexWait(paddr, expected);
+		releasePage(Processor.pageFromAddress(vaddr));
+
+		return result;
+	}
+
+	/**
+	 * Handle the futexWake() system call.
+	 */
+	private int handleFutexWake(int vaddr, int count) {
+		if (vaddr % 4 != 0 || count < 0)
+			return -1;
+
+		int paddr = translateAddress(vaddr);
+		if (paddr == -1)
+			return -1;
+
+		int result = UserKernel.futexWake(paddr, count);
+		releasePage(Processor.pageFromAddress(vaddr));
+
+		return result;
+	}
+
+	/**
+	 * Handle the creat() and open() system calls.
+	 */
+	private int handleOpen(int nameAddr, boolean create) {
+		String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+		if (name == null)
+			return -1;
+
+		int fd = getFreeFileDescriptor();
+		if (fd == -1)
+			return -1;
+
+		// an executable that is rewritten might keep its length
+		if (create)
+			forgetExecutable(name);
+
+		OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+		if (file == null) {
+			Lib.debug(dbgProcess, "\tunable to open " + name);
+			return -1;
+		}
+
+		fileTable[fd] = file;
+		return fd;
+	}
+
+	/**
+	 * Handle the read() system call. The data is read from the file into the
+	 * bounce buffer and then copied into user memory, one buffer-sized chunk
+	 * at a time.
+	 */
+	private int handleRead(int fd, int bufferAddr, int count) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || count < 0)
+			return -1;
+
+		int total = 0;
+		while (total < count) {
+			int chunk = Math.min(count - total, ioBuffer.length);
+
+			int amount = file.read(ioBuffer, 0, chunk);
+			if (amount == -1)
+				return -1;
+
+			if (writeVirtualMemory(bufferAddr + total, ioBuffer, 0, amount) < amount)
+				return -1;
+
+			total += amount;
+
+			// end of file, or a stream with nothing more available right now
+			if (amount < chunk)
+				break;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Handle the write() system call. The data is copied from user memory into
+	 * the bounce buffer and then written to the file, one buffer-sized chunk
+	 * at a time.
+	 */
+	private int handleWrite(int fd, int bufferAddr, int count) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || count < 0)
+			return -1;
+
+		int total = 0;
+		while (total < count) {
+			int chunk = Math.min(count - total, ioBuffer.length);
+
+			if (readVirtualMemory(bufferAddr + total, ioBuffer, 0,
+					chunk) < chunk) {
+				total = -1;
+				break;
+			}
+
+			int amount = file.write(ioBuffer, 0, chunk);
+			if (amount == -1) {
+				total = -1;
+				break;
+			}
+
+			total += amount;
+
+			if (amount < chunk)
+				break;
+		}
+
+		// the file's cached headers and snapshot, if any, are now stale
+		forgetExecutable(file);
+
+		return total;
+	}
+
+	/**
+	 * Handle the pread() system call. Unlike <tt>read()</tt>, the data is
+	 * read from the specified position and the file position is left alone.
+	 * Like <tt>read()</tt>, it passes through the bounce buffer one
+	 * buffer-sized chunk at a time.
+	 */
+	private int handlePread(int fd, int bufferAddr, int count, int pos) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || count < 0 || pos < 0)
+			return -1;
+
+		int total = 0;
+		while (total < count) {
+			int chunk = Math.min(count - total, ioBuffer.length);
+
+			int amount = file.read(pos + total, ioBuffer, 0, chunk);
+			if (amount == -1)
+				return -1;
+
+			if (writeVirtualMemory(bufferAddr + total, ioBuffer, 0, amount) < amount)
+				return -1;
+
+			total += amount;
+
+			if (amount < chunk)
+				break;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Handle the pwrite() system call, the positional counterpart of
+	 * <tt>pread()</tt>.
+	 */
+	private int handlePwrite(int fd, int bufferAddr, int count, int pos) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || count < 0 || pos < 0)
+			return -1;
+
+		int total = 0;
+		while (total < count) {
+			int chunk = Math.min(count - total, ioBuffer.length);
+
+			if (readVirtualMemory(bufferAddr + total, ioBuffer, 0,
+					chunk) < chunk) {
+				total = -1;
+				break;
+			}
+
+			int amount = file.write(pos + total, ioBuffer, 0, chunk);
+			if (amount == -1) {
+				total = -1;
+				break;
+			}
+
+			total += amount;
+
+			if (amount < chunk)
+				break;
+		}
+
+		forgetExecutable(file);
+
+		return total;
+	}
+
+	/**
+	 * Handle the readv() system call. The file is read at its current
+	 * position through the bounce buffer, which holds a full page for every
+	 * buffer <tt>readv()</tt> accepts, so a vector of up to
+	 * <tt>maxIOVectors</tt> pages is read with a single call on the file,
+	 * however many buffers it is scattered over.
+	 */
+	private int handleReadv(int fd, int vectorAddr, int vectorCount) {
+		OpenFile file = getOpenFile(fd);
+		int[] vectors = readIOVectors(vectorAddr, vectorCount);
+		if (file == null || vectors == null)
+			return -1;
+
+		int count = vectors[vectors.length - 1];
+		int total = 0;
+		while (total < count) {
+			int chunk = Math.min(count - total, ioBuffer.length);
+
+			int amount = file.read(ioBuffer, 0, chunk);
+			if (amount == -1)
+				return -1;
+
+			if (!copyIOVectors(vectors, total, ioBuffer, amount, true))
+				return -1;
+
+			total += amount;
+
+			if (amount < chunk)
+				break;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Handle the writev() system call, which gathers its buffers and writes
+	 * them the way <tt>readv()</tt> reads.
+	 */
+	private int handleWritev(int fd, int vectorAddr, int vectorCount) {
+		OpenFile file = getOpenFile(fd);
+		int[] vectors = readIOVectors(vectorAddr, vectorCount);
+		if (file == null || vectors == null)
+			return -1;
+
+		int count = vectors[vectors.length - 1];
+		int total = 0;
+		while (total < count) {
+			int chunk = Math.min(count - total, ioBuffer.length);
+
+			if (!copyIOVectors(vectors, total, ioBuffer, chunk, false)) {
+				total = -1;
+				break;
+			}
+
+			int amount = file.write(ioBuffer, 0, chunk);
+			if (amount == -1) {
+				total = -1;
+				break;
+			}
+
+			total += amount;
+
+			if (amount < chunk)
+				break;
+		}
+
+		forgetExecutable(file);
+
+		return total;
+	}
+
+	/**
+	 * Read an array of <tt>struct iovec</tt> from user memory. Each is a
+	 * buffer address followed by a length.
+	 *
+	 * @param vectorAddr the address of the array.
+	 * @param vectorCount the number of elements in the array.
+	 * @return the addresses and lengths, followed by the sum of the lengths,
+	 * or <tt>null</tt> if the array is invalid.
+	 */
+	private int[] readIOVectors(int vectorAddr, int vectorCount) {
+		if (vectorCount < 1 || vectorCount > maxIOVectors)
+			return null;
+
+		byte[] data = new byte[vectorCount * 8];
+		if (readVirtualMemory(vectorAddr, data) < data.length)
+			return null;
+
+		int[] vectors = new int[vectorCount * 2 + 1];
+		long count = 0;
+		for (int i = 0; i < vectorCount * 2; i += 2) {
+			vectors[i] = Lib.bytesToInt(data, i * 4);
+			vectors[i + 1] = Lib.bytesToInt(data, i * 4 + 4);
+
+			if (vectors[i + 1] < 0)
+				return null;
+
+			count += vectors[i + 1];
+		}
+
+		if (count > Integer.MAX_VALUE)
+			return null;
+
+		vectors[vectorCount * 2] = (int) count;
+		return vectors;
+	}
+
+	/**
+	 * Copy between a kernel buffer and the part of the user buffers described
+	 * by <i>vectors</i> that starts <i>offset</i> bytes in, one page-sized
+	 * piece at a time.
+	 *
+	 * @param toUser <tt>true</tt> to copy from <i>data</i> into the user
+	 * buffers, <tt>false</tt> to copy the other way.
+	 * @return <tt>false</tt> if part of a user buffer is invalid.
+	 */
+	private boolean copyIOVectors(int[] vectors, int offset, byte[] data,
+			int length, boolean toUser) {
+		int copied = 0;
+		for (int i = 0; i + 1 < vectors.length && copied < length; i += 2) {
+			if (offset >= vectors[i + 1]) {
+				offset -= vectors[i + 1];
+				continue;
+			}
+
+			int remaining = Math.min(vectors[i + 1] - offset, length - copied);
+			while (remaining > 0) {
+				int vaddr = vectors[i] + offset;
+				int piece = Math.min(remaining, pageSize
+						- Processor.offsetFromAddress(vaddr));
+
+				int amount = toUser ? writeVirtualMemory(vaddr, data, copied,
+						piece) : readVirtualMemory(vaddr, data, copied, piece);
+				if (amount < piece)
+					return false;
+
+				offset += piece;
+				copied += piece;
+				remaining -= piece;
+			}
+
+			offset = 0;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Handle the close() system call.
+	 */
+	private int handleClose(int fd) {
+		if (getOpenFile(fd) == null)
+			return -1;
+
+		closeFile(fd);
+
+		return 0;
+	}
+
+	/**
+	 * Handle the unlink() system call.
+	 */
+	private int handleUnlink(int nameAddr) {
+		String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+		if (name == null)
+			return -1;
+
+		forgetExecutable(name);
+
+		return ThreadedKernel.fileSystem.remove(name) ? 0 : -1;
+	}
+
+	/**
+	 * Return the file open on the specified descriptor.
+	 * 
+	 * @param fd the file descriptor.
+	 * @return the open file, or <tt>null</tt> if <i>fd</i> is not open.
+	 */
+	protected OpenFile getOpenFile(int fd) {
+		if (fd < 0 || fd >= fileTable.length)
+			return null;
+
+		return fileTable[fd];
+	}
+
+	/**
+	 * Return the lowest file descriptor that is not in use.
+	 * 
+	 * @return a free file descriptor, or <tt>-1</tt> if the file table is
+	 * full.
+	 */
+	protected int getFreeFileDescriptor() {
+		for (int fd = 0; fd < fileTable.length; fd++) {
+			if (fileTable[fd] == null)
+				return fd;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Close an open file descriptor, either for <tt>close()</tt> or because
+	 * this process is exiting.
+	 * 
+	 * @param fd a file descriptor that refers to an open file.
+	 */
+	protected void closeFile(int fd) {
+		fileTable[fd].close();
+		fileTable[fd] = null;
+	}
+
+	/**
+	 * Close every file this process has open, including the console files
+	 * every process starts with.
+	 */
+	protected void closeFiles() {
+		for (int fd = 0; fd < fileTable.length; fd++) {
+			if (fileTable[fd] != null)
+				closeFile(fd);
+		}
+	}
+
+	protected static final int syscallHalt = 0, syscallExit = 1,
+			syscallExec = 2, syscallJoin = 3, syscallCreate = 4,
+			syscallOpen = 5, syscallRead = 6, syscallWrite = 7,
+			syscallClose = 8, syscallUnlink = 9, syscallMmap = 10,
+			syscallFutexWait = 13, syscallFutexWake = 14, syscallFork = 15,
+			syscallExecStack = 16, syscallPread = 17, syscallPwrite = 18,
+			syscallReadv = 19, syscallWritev = 20;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -431,6 +1379,37 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  futexWait(int *address, int expected);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  futexWake(int *address, int count);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  execStack(char *name, int argc, char **argv,
+	 * int stackPages);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int  pread(int fd, char *buffer, int size, int offset);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  pwrite(int fd, char *buffer, int size, int offset);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -446,6 +1425,36 @@ public class UserProcess {
 			return handleHalt();
 		case syscallExit:
 			return handleExit(a0);
+		case syscallExec:
+			return handleExec(a0, a1, a2, defaultStackPages);
+		case syscallJoin:
+			return handleJoin(a0, a1);
+		case syscallCreate:
+			return handleOpen(a0, true);
+		case syscallOpen:
+			return handleOpen(a0, false);
+		case syscallRead:
+			return handleRead(a0, a1, a2);
+		case syscallWrite:
+			return handleWrite(a0, a1, a2);
+		case syscallClose:
+			return handleClose(a0);
+		case syscallUnlink:
+			return handleUnlink(a0);
+		case syscallFutexWait:
+			return handleFutexWait(a0, a1);
+		case syscallFutexWake:
+			return handleFutexWake(a0, a1);
+		case syscallExecStack:
+			return handleExec(a0, a1, a2, a3);
+		case syscallPread:
+			return handlePread(a0, a1, a2, a3);
+		case syscallPwrite:
+			return handlePwrite(a0, a1, a2, a3);
+		case syscallReadv:
+			return handleReadv(a0, a1, a2);
+		case syscallWritev:
+			return handleWritev(a0, a1, a2);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -478,21 +1487,100 @@ public class UserProcess {
 		default:
 			Lib.debug(dbgProcess, "Unexpected exception: "
 					+ Processor.exceptionNames[cause]);
-			Lib.assertNotReached("Unexpected exception");
+
+			killed = true;
+			handleExit(-1);
 		}
 	}
 
 	/** The program being run by this process. */
 	protected Coff coff;
 
-	/** This process's page table. */
+	/**
+	 * This process's page table, built by <tt>loadSections()</tt> with one
+	 * entry per virtual page.
+	 */
 	protected TranslationEntry[] pageTable;
 
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
 	/** The number of pages in the program's stack. */
-	protected final int stackPages = 8;
+	protected int stackPages = defaultStackPages;
+
+	/** The number of stack pages a program gets unless exec asks otherwise. */
+	protected static final int defaultStackPages = Config.getInteger(
+			"UserProcess.stackPages", 8);
+
+	/**
+	 * The files open in this process, indexed by file descriptor. Descriptors
+	 * 0 and 1 start out attached to the console.
+	 */
+	protected OpenFile[] fileTable = new OpenFile[maxOpenFiles];
+
+	/**
+	 * Kernel buffer that <tt>read()</tt>, <tt>write()</tt> and their variants
+	 * pass through, so that a transfer does not allocate a buffer of its own.
+	 * It holds <tt>maxIOVectors</tt> pages, so that <tt>readv()</tt> and
+	 * <tt>writev()</tt> can stage a whole vector of pages at once.
+	 */
+	private byte[] ioBuffer = new byte[maxIOVectors * pageSize];
+
+	/**
+	 * The exit status of a process, shared with its parent so that the parent
+	 * can join it. This is all that is kept of a process once it has exited.
+	 */
+	private static class ExitStatus {
+		/**
+		 * Record that the process has exited, and wake its parent if it is
+		 * waiting in <tt>join()</tt>.
+		 */
+		void exit(int status, boolean normal) {
+			lock.acquire();
+
+			this.status = status;
+			this.normal = normal;
+			exited = true;
+			exitCondition.wakeAll();
+
+			lock.release();
+		}
+
+		/**
+		 * Wait for the process to exit.
+		 */
+		void waitForExit() {
+			lock.acquire();
+
+			while (!exited)
+				exitCondition.sleep();
+
+			lock.release();
+		}
+
+		int status;
+
+		boolean normal;
+
+		private boolean exited = false;
+
+		private Lock lock = new Lock();
+
+		private Condition2 exitCondition = new Condition2(lock);
+	}
+
+	/** This process's ID. */
+	protected int pid;
+
+	/** The children that have not been joined, keyed by process ID. */
+	private HashMap<Integer, ExitStatus> children =
+		new HashMap<Integer, ExitStatus>();
+
+	/** This process's exit status, which its parent holds until it joins. */
+	private ExitStatus exitStatus = new ExitStatus();
+
+	/** Set when this process is terminated by an unhandled exception. */
+	private boolean killed = false;
 
 	/** The thread that executes the user-level program. */
         protected UThread thread;
@@ -501,7 +1589,120 @@ public class UserProcess {
 
 	private int argc, argv;
 
+	/**
+	 * The parsed headers of an executable, kept across exec calls. The image
+	 * is never used to load pages; each process gets its own copy.
+	 */
+	private static class CachedExecutable {
+		CachedExecutable(int id, int length, Coff image) {
+			this.id = id;
+			this.length = length;
+			this.image = image;
+		}
+
+		/** Distinguishes this parse of the file from any other. */
+		int id;
+
+		/** The length of the file when it was parsed. */
+		int length;
+
+		Coff image;
+
+		/** The initialized pages of the executable, once a process loads it. */
+		Snapshot snapshot = null;
+	}
+
+	/**
+	 * The initialized pages of an executable, kept in memory so that
+	 * processes running it need not read them from the file.
+	 */
+	private static class Snapshot {
+		Snapshot(int numPages) {
+			pages = new byte[numPages * pageSize];
+			loaded = new boolean[numPages];
+		}
+
+		byte[] pages;
+
+		/** Which pages have been filled in so far. */
+		boolean[] loaded;
+
+		int numLoaded = 0;
+	}
+
+	/**
+	 * The parsed executables, keyed by file name, in order of last use. The
+	 * least recently used one is dropped to make room for another.
+	 */
+	private static LinkedHashMap<String, CachedExecutable> executableCache =
+		new LinkedHashMap<String, CachedExecutable>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CachedExecutable> eldest) {
+				return size() > maxCachedExecutables;
+			}
+		};
+
+	private static int nextExecutableID = 0;
+
+	/** Protects the executable cache. */
+	private static Lock executableLock = new Lock();
+
+	/** The most executables whose headers are cached at once. */
+	private static final int maxCachedExecutables = 16;
+
+	/** The open executable, which <tt>coff</tt> reads pages from. */
+	private SharedOpenFile executable = null;
+
+	/** The cached headers this process's executable was loaded from. */
+	private CachedExecutable cachedExecutable = null;
+
+	/**
+	 * The initialized pages of this process's executable, shared with every
+	 * other process loaded from the same snapshot, or <tt>null</tt>.
+	 */
+	private Snapshot snapshot = null;
+
+	/**
+	 * Whether processes are loaded from snapshots of their executables kept
+	 * in memory, instead of from the executables themselves.
+	 */
+	private static boolean useSnapshots = Config.getBoolean(
+			"UserProcess.useSnapshots", true);
+
+	/**
+	 * Whether <tt>loadSections()</tt> reads each section from the executable
+	 * with a single read, instead of one read per page.
+	 */
+	private static boolean loadWholeSections = Config.getBoolean(
+			"UserProcess.loadWholeSections", true);
+
+	/**
+	 * The buffer whole sections are read into before being copied to their
+	 * frames. It grows to fit the largest section loaded so far.
+	 */
+	private static byte[] stagingBuffer = new byte[16 * Processor.pageSize];
+
+	/** Protects the staging buffer, which is in use while a load sleeps. */
+	private static Lock stagingLock = new Lock();
+
 	private static final int pageSize = Processor.pageSize;
 
+	/** The number of files a process may have open at once. */
+	protected static final int maxOpenFiles = 16;
+
+	/** The maximum length of a file name passed to a syscall. */
+	protected static final int maxFileNameLength = 256;
+
+	/** The maximum number of arguments that may be passed to exec(). */
+	protected static final int maxExecArgs = 64;
+
+	/** The maximum number of buffers readv() and writev() accept. */
+	private static final int maxIOVectors = 16;
+
+	/** The maximum number of stack pages execStack() may ask for. */
+	private static final int maxStackPages = 256;
+
+	private static final int fdStandardInput = 0, fdStandardOutput = 1;
+
 	private static final char dbgProcess = 'a';
 }
@@ -0,0 +1,50 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An approximation of least-recently-used replacement by aging. Each frame has
+ * an 8-bit age. Every time a victim is needed, each age is shifted right and
+ * the frame's used bit is moved into the top bit, then cleared; the frame with
+ * the lowest age is the one that has gone longest without being used.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+		ages = new int[Machine.processor().getNumPhysPages()];
+	}
+
+	public void pageLoaded(int ppn) {
+		// a new page counts as just used
+		ages[ppn] = 0x80;
+	}
+
+	public void pageUnloaded(int ppn) {
+		ages[ppn] = 0;
+	}
+
+	public int selectVictim() {
+		int victim = -1;
+		for (int ppn = 0; ppn < ages.length; ppn++) {
+			if (!VMKernel.isFrameMapped(ppn))
+				continue;
+
+			boolean used = VMKernel.isFrameUsed(ppn);
+			ages[ppn] = (ages[ppn] >> 1) | (used ? 0x80 : 0);
+			VMKernel.clearFrameUsed(ppn);
+
+			if (VMKernel.isPinned(ppn))
+				continue;
+
+			if (victim == -1 || ages[ppn] < ages[victim])
+				victim = ppn;
+		}
+
+		return victim;
+	}
+
+	/** The age of the page in each frame; lower means less recently used. */
+	private int[] ages;
+}
@@ -0,0 +1,44 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock algorithm. A hand sweeps the frames in order, clearing each used
+ * bit it passes, and evicts the first frame whose used bit is already clear.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+	}
+
+	public void pageLoaded(int ppn) {
+	}
+
+	public void pageUnloaded(int ppn) {
+	}
+
+	public int selectVictim() {
+		// two sweeps are enough to find a victim if any frame is unpinned
+		for (int i = 0; i < 2 * numPhysPages; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numPhysPages;
+
+			if (!VMKernel.isFrameMapped(ppn) || VMKernel.isPinned(ppn))
+				continue;
+
+			if (!VMKernel.isFrameUsed(ppn))
+				return ppn;
+
+			VMKernel.clearFrameUsed(ppn);
+		}
+
+		return -1;
+	}
+
+	private int numPhysPages;
+
+	private int hand = 0;
+}
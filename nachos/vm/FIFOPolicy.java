@@ -0,0 +1,41 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * First-in first-out replacement. Evicts the page that has been resident the
+ * longest, regardless of how recently it was used.
+ */
+public class FIFOPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new FIFO policy.
+	 */
+	public FIFOPolicy() {
+		loadTimes = new long[Machine.processor().getNumPhysPages()];
+	}
+
+	public void pageLoaded(int ppn) {
+		loadTimes[ppn] = nextLoadTime++;
+	}
+
+	public void pageUnloaded(int ppn) {
+	}
+
+	public int selectVictim() {
+		int victim = -1;
+		for (int ppn = 0; ppn < loadTimes.length; ppn++) {
+			if (!VMKernel.isFrameMapped(ppn) || VMKernel.isPinned(ppn))
+				continue;
+
+			if (victim == -1 || loadTimes[ppn] < loadTimes[victim])
+				victim = ppn;
+		}
+
+		return victim;
+	}
+
+	/** The order in which each frame was filled. */
+	private long[] loadTimes;
+
+	private long nextLoadTime = 0;
+}
@@ -0,0 +1,175 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A hash table that maps a (process ID, virtual page number) pair to the
+ * physical page holding that virtual page. The table uses open addressing with
+ * linear probing over primitive arrays, so lookups and updates take expected
+ * constant time and allocate nothing. Its size is proportional to the number
+ * of resident pages, not to the size of any address space.
+ */
+public class InvertedPageTable {
+	/**
+	 * Allocate a new inverted page table with room for at least the specified
+	 * number of mappings before it has to grow.
+	 *
+	 * @param expectedSize the expected number of mappings.
+	 */
+	public InvertedPageTable(int expectedSize) {
+		int capacity = minCapacity;
+		while (capacity < expectedSize * 2)
+			capacity *= 2;
+
+		allocate(capacity);
+	}
+
+	/**
+	 * Return the physical page holding the specified virtual page.
+	 *
+	 * @param pid the ID of the process that owns the page.
+	 * @param vpn the virtual page number.
+	 * @return the physical page number, or <tt>-1</tt> if the page is not
+	 * resident.
+	 */
+	public int lookup(int pid, int vpn) {
+		long key = makeKey(pid, vpn);
+
+		for (int i = hash(key);; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return ppns[i];
+			if (keys[i] == emptyKey)
+				return -1;
+		}
+	}
+
+	/**
+	 * Record that the specified virtual page is held in the specified physical
+	 * page. The virtual page must not already be mapped.
+	 *
+	 * @param pid the ID of the process that owns the page.
+	 * @param vpn the virtual page number.
+	 * @param ppn the physical page number.
+	 */
+	public void insert(int pid, int vpn, int ppn) {
+		Lib.assertTrue(ppn >= 0);
+
+		long key = makeKey(pid, vpn);
+
+		int slot = -1;
+		int i = hash(key);
+		for (;; i = (i + 1) & mask) {
+			Lib.assertTrue(keys[i] != key);
+
+			if (keys[i] == emptyKey)
+				break;
+			if (keys[i] == deletedKey && slot == -1)
+				slot = i;
+		}
+
+		// reuse a tombstone if the probe passed one
+		if (slot == -1) {
+			slot = i;
+			used++;
+		}
+
+		keys[slot] = key;
+		ppns[slot] = ppn;
+		size++;
+
+		if (used * 4 > keys.length * 3)
+			rehash(size * 4 > keys.length ? keys.length * 2 : keys.length);
+	}
+
+	/**
+	 * Remove the mapping for the specified virtual page.
+	 *
+	 * @param pid the ID of the process that owns the page.
+	 * @param vpn the virtual page number.
+	 * @return the physical page that held the virtual page, or <tt>-1</tt> if
+	 * it was not resident.
+	 */
+	public int remove(int pid, int vpn) {
+		long key = makeKey(pid, vpn);
+
+		for (int i = hash(key);; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				keys[i] = deletedKey;
+				size--;
+				return ppns[i];
+			}
+			if (keys[i] == emptyKey)
+				return -1;
+		}
+	}
+
+	/**
+	 * Return the number of mappings in this table.
+	 *
+	 * @return the number of mappings.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		ppns = new int[capacity];
+		mask = capacity - 1;
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+
+		Arrays.fill(keys, emptyKey);
+		size = used = 0;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldPpns = ppns;
+
+		allocate(capacity);
+
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == emptyKey || oldKeys[j] == deletedKey)
+				continue;
+
+			int i = hash(oldKeys[j]);
+			while (keys[i] != emptyKey)
+				i = (i + 1) & mask;
+
+			keys[i] = oldKeys[j];
+			ppns[i] = oldPpns[j];
+			size++;
+			used++;
+		}
+	}
+
+	private int hash(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	private static long makeKey(int pid, int vpn) {
+		Lib.assertTrue(pid >= 0 && vpn >= 0);
+
+		return ((long) pid << 32) | vpn;
+	}
+
+	/** The packed (pid, vpn) key in each slot, or a marker value. */
+	private long[] keys;
+
+	/** The physical page number in each slot. */
+	private int[] ppns;
+
+	private int mask, shift;
+
+	/** The number of mappings in the table. */
+	private int size;
+
+	/** The number of slots that are not empty, including tombstones. */
+	private int used;
+
+	private static final long emptyKey = -1, deletedKey = -2;
+
+	private static final int minCapacity = 16;
+}
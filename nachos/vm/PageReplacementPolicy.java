@@ -0,0 +1,40 @@
+package nachos.vm;
+
+/**
+ * Chooses which frame to evict when <tt>VMKernel</tt> runs out of free
+ * physical memory. The policy in use is named by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * <p>
+ * A policy learns about the pages in memory through <tt>pageLoaded()</tt> and
+ * <tt>pageUnloaded()</tt>, and can inspect and clear the used and dirty bits
+ * of a frame through <tt>VMKernel</tt>. A frame shared by several processes
+ * counts as used (or dirty) if any of its mappings is. All methods are called
+ * with the VM lock held.
+ *
+ * @see nachos.vm.VMKernel
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * Notify this policy that a frame has been filled with a page.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 */
+	public void pageLoaded(int ppn);
+
+	/**
+	 * Notify this policy that a frame no longer holds a page.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 */
+	public void pageUnloaded(int ppn);
+
+	/**
+	 * Choose a frame to evict. The frame must hold a page and must not be
+	 * pinned (see <tt>VMKernel.isPinned()</tt>).
+	 *
+	 * @return the physical page number of the victim, or <tt>-1</tt> if every
+	 * frame is pinned.
+	 */
+	public int selectVictim();
+}
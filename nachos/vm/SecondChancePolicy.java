@@ -0,0 +1,69 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The enhanced second-chance algorithm. Frames are ranked by their (used,
+ * dirty) bits, and the clock hand looks for the lowest class first: an unused
+ * clean frame, then an unused dirty frame. Used bits are only cleared during
+ * the sweeps for dirty frames, so a clean page that was not used recently is
+ * preferred to one that would cost a write to swap.
+ */
+public class SecondChancePolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new enhanced second-chance policy.
+	 */
+	public SecondChancePolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+	}
+
+	public void pageLoaded(int ppn) {
+	}
+
+	public void pageUnloaded(int ppn) {
+	}
+
+	public int selectVictim() {
+		// after two rounds every used bit has been cleared
+		for (int round = 0; round < 2; round++) {
+			int ppn = sweep(false, false);
+			if (ppn == -1)
+				ppn = sweep(true, true);
+			if (ppn != -1)
+				return ppn;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Make one full turn of the clock hand looking for an unused frame.
+	 *
+	 * @param acceptDirty <tt>true</tt> if a dirty frame may be chosen.
+	 * @param clearUsed <tt>true</tt> to clear the used bit of every frame
+	 * passed over.
+	 * @return the victim, or <tt>-1</tt> if none was found.
+	 */
+	private int sweep(boolean acceptDirty, boolean clearUsed) {
+		for (int i = 0; i < numPhysPages; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numPhysPages;
+
+			if (!VMKernel.isFrameMapped(ppn) || VMKernel.isPinned(ppn))
+				continue;
+
+			if (!VMKernel.isFrameUsed(ppn)
+					&& (acceptDirty || !VMKernel.isFrameDirty(ppn)))
+				return ppn;
+
+			if (clearUsed)
+				VMKernel.clearFrameUsed(ppn);
+		}
+
+		return -1;
+	}
+
+	private int numPhysPages;
+
+	private int hand = 0;
+}
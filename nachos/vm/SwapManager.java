@@ -0,0 +1,187 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Manages the swap file shared by every process. The file is divided into
+ * page-sized slots, and a bitmap records which slots are in use, so a slot
+ * freed by one process can be reused by any other. Several pages can be
+ * written to a run of adjacent slots with a single file operation. A slot
+ * can be shared by several processes after <tt>fork()</tt>, in which case it
+ * is only freed when the last of them frees it.
+ *
+ * <p>
+ * A swap manager is not synchronized; callers must hold the VM lock.
+ */
+public class SwapManager {
+	/**
+	 * Create a new swap manager, truncating the swap file if it already
+	 * exists. The swap file bypasses the block cache, if there is one: the
+	 * pages in it were just evicted from memory, and caching them again would
+	 * only push file blocks out of the cache.
+	 *
+	 * @param fileName the name of the swap file.
+	 */
+	public SwapManager(String fileName) {
+		this.fileName = fileName;
+
+		fileSystem = ThreadedKernel.fileSystem;
+		if (fileSystem instanceof CachedFileSystem)
+			fileSystem = ((CachedFileSystem) fileSystem).getFileSystem();
+
+		swapFile = fileSystem.open(fileName, true);
+		Lib.assertTrue(swapFile != null, "unable to open swap file");
+	}
+
+	/**
+	 * Write a group of physical pages to a run of adjacent free slots, using a
+	 * single write to the swap file.
+	 *
+	 * @param ppns the physical pages to write, in the order they should be
+	 * stored.
+	 * @param count the number of entries of <i>ppns</i> to write.
+	 * @return the slot holding <tt>ppns[0]</tt>; <tt>ppns[i]</tt> is held in
+	 * the slot that follows it by <tt>i</tt>.
+	 */
+	public int writePages(int[] ppns, int count) {
+		Lib.assertTrue(count > 0 && count <= ppns.length);
+
+		int slot = allocateSlots(count);
+
+		byte[] memory = Machine.processor().getMemory();
+		byte[] buffer = (count == 1) ? memory : new byte[count * pageSize];
+		int offset = ppns[0] * pageSize;
+
+		if (count > 1) {
+			for (int i = 0; i < count; i++)
+				System.arraycopy(memory, ppns[i] * pageSize, buffer, i
+						* pageSize, pageSize);
+			offset = 0;
+		}
+
+		int amount = swapFile.write(slot * pageSize, buffer, offset, count
+				* pageSize);
+		Lib.assertTrue(amount == count * pageSize, "swap write failed");
+
+		Lib.debug(dbgVM, "\twrote " + count + " pages to swap slot " + slot);
+
+		numPageWrites += count;
+		numWrites++;
+		return slot;
+	}
+
+	/**
+	 * Read the page held in a slot into physical memory. The slot remains
+	 * allocated.
+	 *
+	 * @param slot the slot to read.
+	 * @param ppn the physical page to read it into.
+	 */
+	public void readPage(int slot, int ppn) {
+		Lib.assertTrue(slots.get(slot));
+
+		int amount = swapFile.read(slot * pageSize, Machine.processor()
+				.getMemory(), ppn * pageSize, pageSize);
+		Lib.assertTrue(amount == pageSize, "swap read failed");
+
+		numReads++;
+	}
+
+	/**
+	 * Add a reference to an allocated slot, so that it takes one more call to
+	 * <tt>freeSlot()</tt> to free it.
+	 *
+	 * @param slot the slot to share.
+	 */
+	public void addReference(int slot) {
+		Lib.assertTrue(slots.get(slot));
+
+		Integer extra = extraReferences.get(slot);
+		extraReferences.put(slot, (extra == null) ? 1 : extra + 1);
+	}
+
+	/**
+	 * Drop a reference to a slot, returning it to the free pool if that was
+	 * the last one.
+	 *
+	 * @param slot the slot to free.
+	 */
+	public void freeSlot(int slot) {
+		Lib.assertTrue(slots.get(slot));
+
+		Integer extra = extraReferences.get(slot);
+		if (extra == null)
+			slots.clear(slot);
+		else if (extra == 1)
+			extraReferences.remove(slot);
+		else
+			extraReferences.put(slot, extra - 1);
+	}
+
+	/**
+	 * Close and delete the swap file.
+	 */
+	public void close() {
+		fileSystem.remove(fileName);
+		swapFile.close();
+	}
+
+	/**
+	 * Return the number of slots currently in use.
+	 *
+	 * @return the number of allocated slots.
+	 */
+	public int getNumUsedSlots() {
+		return slots.cardinality();
+	}
+
+	/**
+	 * Find and allocate the lowest run of <i>count</i> adjacent free slots.
+	 * The swap file grows as needed, so this always succeeds.
+	 */
+	private int allocateSlots(int count) {
+		int slot = slots.nextClearBit(0);
+		while (true) {
+			int used = slots.nextSetBit(slot);
+			if (used == -1 || used - slot >= count)
+				break;
+
+			slot = slots.nextClearBit(used);
+		}
+
+		slots.set(slot, slot + count);
+		return slot;
+	}
+
+	/** The number of read and write operations on the swap file. */
+	int numReads = 0, numWrites = 0;
+
+	/** The number of pages written to the swap file. */
+	int numPageWrites = 0;
+
+	private String fileName;
+
+	/** The file system holding the swap file. */
+	private FileSystem fileSystem;
+
+	private OpenFile swapFile;
+
+	/** The slots that hold a page. */
+	private BitSet slots = new BitSet();
+
+	/**
+	 * The number of references beyond the first to each shared slot. Most
+	 * slots are not shared and have no entry.
+	 */
+	private HashMap<Integer, Integer> extraReferences =
+			new HashMap<Integer, Integer>();
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgVM = 'v';
+}
@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.HashMap;
+import java.util.HashSet;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -21,6 +24,36 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		pageTable = new InvertedPageTable(numPhysPages);
+		frameMappings = new FrameMapping[numPhysPages];
+		pinCounts = new int[numPhysPages];
+		sharedPageKeys = new String[numPhysPages];
+		referenced = new boolean[numPhysPages];
+
+		String policyName = Config.getString("VMKernel.replacementPolicy",
+				"nachos.vm.ClockPolicy");
+		replacementPolicy = (PageReplacementPolicy) Lib
+				.constructObject(policyName);
+
+		vmLock = new Lock();
+
+		swap = new SwapManager(Config.getString("VMKernel.swapFile", "swap"));
+
+		workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 8);
+		admissionControl = Config.getBoolean("VMKernel.admissionControl",
+				false);
+		admissionReserve = Config.getInteger("VMKernel.admissionReserve", 4);
+		prefetchPages = Config.getInteger("VMKernel.prefetchPages", 4);
+
+		// sample the used bits before the alarm runs on each timer interrupt
+		Machine.timer().setInterruptHandler(new Runnable() {
+			public void run() {
+				sampleWorkingSets();
+				alarm.timerInterrupt();
+			}
+		});
 	}
 
 	/**
@@ -41,11 +74,661 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		System.out.println("VM: COFF loads " + numCOFFLoads + ", zero fills "
+				+ numZeroFills + ", evictions " + numEvictions
+				+ ", copies on write " + numCopiesOnWrite
+				+ ", shared page hits " + numSharedPageHits);
+		System.out.println("VM memory maps: page reads " + numFileLoads
+				+ ", page writes " + numFileWrites);
+		System.out.println("VM TLB: entries restored " + numTLBEntriesRestored);
+		System.out.println("VM working sets: samples " + numSamples
+				+ ", prefetches " + numPrefetches + ", execs refused "
+				+ numAdmissionRefusals);
+		System.out.println("VM swap: reads " + swap.numReads + ", writes "
+				+ swap.numWrites + " (" + swap.numPageWrites
+				+ " pages), slots in use " + swap.getNumUsedSlots());
+
+		swap.close();
+
 		super.terminate();
 	}
 
+	/**
+	 * Acquire the VM lock, which serializes page faults, evictions, and the
+	 * release of a process's frames.
+	 */
+	public static void acquireVMLock() {
+		vmLock.acquire();
+	}
+
+	/**
+	 * Release the VM lock.
+	 */
+	public static void releaseVMLock() {
+		vmLock.release();
+	}
+
+	/**
+	 * Find a frame to hold a new page. If no frame is free, a victim chosen by
+	 * the replacement policy is evicted, and written to swap first if it is
+	 * dirty. The caller must hold the VM lock. The frame is
+	 * returned pinned, and should be unpinned once the new page is mapped.
+	 *
+	 * @return the physical page number of the frame, or <tt>-1</tt> if every
+	 * frame is pinned.
+	 */
+	public static int allocateFrame() {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		int[] ppns = allocatePages(1);
+		int ppn;
+
+		if (ppns != null) {
+			ppn = ppns[0];
+		}
+		else {
+			// the policy needs the bits the running process has in the TLB
+			if (currentProcess() instanceof VMProcess)
+				((VMProcess) currentProcess()).syncTLB();
+
+			ppn = replacementPolicy.selectVictim();
+			if (ppn == -1) {
+				Lib.debug(dbgVM, "\tevery frame is pinned");
+				return -1;
+			}
+
+			evict(ppn);
+		}
+
+		pinCounts[ppn]++;
+		return ppn;
+	}
+
+	/**
+	 * Evict the page held in a frame, removing it from every process that
+	 * maps it. The frame is pinned while its contents are written out, and is
+	 * left allocated (but unmapped) afterwards.
+	 */
+	private static void evict(int ppn) {
+		pinCounts[ppn]++;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		FrameMapping mappings = frameMappings[ppn];
+		frameMappings[ppn] = null;
+		replacementPolicy.pageUnloaded(ppn);
+		dropSharedPage(ppn);
+
+		boolean dirty = false;
+		int count = 0;
+		for (FrameMapping m = mappings; m != null; m = m.next) {
+			pageTable.remove(m.process.getProcessID(), m.entry.vpn);
+			m.entry.valid = false;
+			if (m.process == currentProcess() && Machine.processor().hasTLB())
+				m.process.invalidateTLBEntry(m.entry.vpn);
+
+			dirty |= m.entry.dirty;
+			count++;
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		Lib.debug(dbgVM, "\tevicting ppn " + ppn + " from " + count
+				+ " process(es)" + (dirty ? " (dirty)" : ""));
+
+		if (count == 1) {
+			mappings.process.pageEvicted(mappings.entry);
+		}
+		else if (mappings.process.isMappedPage(mappings.entry.vpn)) {
+			// every sharer maps the same page of the file, so it goes back once
+			mappings.entry.dirty = dirty;
+			mappings.process.pageEvicted(mappings.entry);
+		}
+		else if (dirty) {
+			// a shared page is written once, and every sharer gets the slot
+			int slot = swap.writePages(new int[] { ppn }, 1);
+			for (FrameMapping m = mappings; m != null; m = m.next) {
+				if (m != mappings)
+					swap.addReference(slot);
+				m.process.setSwapSlot(m.entry.vpn, slot);
+			}
+		}
+
+		pinCounts[ppn]--;
+
+		numEvictions++;
+	}
+
+	/**
+	 * Return the translation for a resident virtual page.
+	 *
+	 * @param process the process that owns the page.
+	 * @param vpn the virtual page number.
+	 * @return the translation entry of the frame holding the page, or
+	 * <tt>null</tt> if the page is not resident.
+	 */
+	public static TranslationEntry lookupPage(VMProcess process, int vpn) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int ppn = pageTable.lookup(process.getProcessID(), vpn);
+		TranslationEntry entry = (ppn == -1) ? null : findEntry(process, ppn);
+
+		Machine.interrupt().restore(intStatus);
+		return entry;
+	}
+
+	/**
+	 * Record that a frame now holds a page of the specified process. The
+	 * translation entry is the one placed in the TLB or page table for the
+	 * page. A frame that already holds a page may be mapped by further
+	 * processes, in which case it is shared by all of them.
+	 *
+	 * @param process the process that owns the page.
+	 * @param entry a valid translation entry for the page.
+	 */
+	public static void mapPage(VMProcess process, TranslationEntry entry) {
+		Lib.assertTrue(entry.valid);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(findEntry(process, entry.ppn) == null);
+		pageTable.insert(process.getProcessID(), entry.vpn, entry.ppn);
+
+		FrameMapping mapping = new FrameMapping(process, entry);
+		mapping.next = frameMappings[entry.ppn];
+		frameMappings[entry.ppn] = mapping;
+
+		if (mapping.next == null) {
+			referenced[entry.ppn] = false;
+			replacementPolicy.pageLoaded(entry.ppn);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Remove one process's mapping of a frame.
+	 *
+	 * @param process the process that maps the frame.
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if no process maps the frame any more, in which
+	 * case it is up to the caller to reuse or free it.
+	 */
+	public static boolean unmapPage(VMProcess process, int ppn) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		FrameMapping prev = null, mapping = frameMappings[ppn];
+		while (mapping.process != process) {
+			prev = mapping;
+			mapping = mapping.next;
+		}
+
+		if (prev == null)
+			frameMappings[ppn] = mapping.next;
+		else
+			prev.next = mapping.next;
+
+		pageTable.remove(process.getProcessID(), mapping.entry.vpn);
+		mapping.entry.valid = false;
+
+		boolean unmapped = (frameMappings[ppn] == null);
+		if (unmapped) {
+			replacementPolicy.pageUnloaded(ppn);
+			dropSharedPage(ppn);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return unmapped;
+	}
+
+	/**
+	 * Remove every mapping held by the specified process, and free the frames
+	 * that no other process shares.
+	 *
+	 * @param process the process whose frames should be released.
+	 */
+	public static void releaseFrames(VMProcess process) {
+		vmLock.acquire();
+
+		for (int ppn = 0; ppn < frameMappings.length; ppn++) {
+			if (findEntry(process, ppn) != null && unmapPage(process, ppn)) {
+				Lib.assertTrue(pinCounts[ppn] == 0);
+				freePage(ppn);
+			}
+		}
+
+		vmLock.release();
+	}
+
+	/**
+	 * Map every resident page of one process below <i>numPages</i> into
+	 * another, for <tt>fork()</tt>. Both processes see the shared frames as
+	 * read-only, so that the first write to one of them faults and can be
+	 * given a private copy. The caller must hold the VM lock, and the
+	 * parent's TLB must have been flushed.
+	 *
+	 * @param parent the process whose pages are shared.
+	 * @param child the process to map them into.
+	 * @param numPages the number of pages to share, starting at page 0.
+	 * @param childPageTable the child's page table, or <tt>null</tt> if the
+	 * processor has a TLB.
+	 */
+	public static void shareFrames(VMProcess parent, VMProcess child,
+			int numPages, TranslationEntry[] childPageTable) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		for (int ppn = 0; ppn < frameMappings.length; ppn++) {
+			TranslationEntry entry = findEntry(parent, ppn);
+			if (entry == null || entry.vpn >= numPages)
+				continue;
+
+			entry.readOnly = true;
+
+			TranslationEntry copy = new TranslationEntry(entry);
+			mapPage(child, copy);
+			if (childPageTable != null)
+				childPageTable[copy.vpn] = copy;
+		}
+	}
+
+	/**
+	 * Return the frame holding a page of a read-only COFF section or of a
+	 * mapped file, if some other process already has it in memory. The
+	 * caller must hold the VM lock.
+	 *
+	 * @param key identifies the executable, section and page within the
+	 * section, or the file and page within the file.
+	 * @return the physical page number, or <tt>-1</tt> if the page is not in
+	 * memory.
+	 */
+	public static int findSharedPage(String key) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		Integer ppn = sharedPages.get(key);
+		return (ppn == null) ? -1 : ppn;
+	}
+
+	/**
+	 * Record that a frame holds a page of a read-only COFF section or of a
+	 * mapped file, so that other processes can map it instead of loading
+	 * their own copy. The frame leaves the cache when no process maps it any
+	 * more. The caller must hold the VM lock.
+	 *
+	 * @param key identifies the executable, section and page within the
+	 * section, or the file and page within the file.
+	 * @param ppn the frame holding the page.
+	 */
+	public static void addSharedPage(String key, int ppn) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+		Lib.assertTrue(sharedPageKeys[ppn] == null);
+
+		sharedPages.put(key, ppn);
+		sharedPageKeys[ppn] = key;
+	}
+
+	/**
+	 * Remove a frame from the cache of shared pages, if it is there.
+	 */
+	private static void dropSharedPage(int ppn) {
+		if (sharedPageKeys[ppn] != null) {
+			sharedPages.remove(sharedPageKeys[ppn]);
+			sharedPageKeys[ppn] = null;
+		}
+	}
+
+	/**
+	 * Return a number identifying the file a name refers to, for the keys of
+	 * shared memory-mapped pages. A name keeps its number until
+	 * <tt>forgetFileID()</tt> is called, so that a file created under the name
+	 * of a removed one does not map the removed file's pages. The caller must
+	 * hold the VM lock.
+	 *
+	 * @param name the name of the file.
+	 * @return the file's ID.
+	 */
+	public static int getFileID(String name) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		Integer id = fileIDs.get(name);
+		if (id == null) {
+			id = nextFileID++;
+			fileIDs.put(name, id);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Give a name a new file ID, because the file it refers to is being
+	 * removed. The caller must hold the VM lock.
+	 *
+	 * @param name the name of the file.
+	 */
+	public static void forgetFileID(String name) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		fileIDs.remove(name);
+	}
+
+	/**
+	 * Return the number of processes that map a frame.
+	 *
+	 * @param ppn the physical page number.
+	 * @return the frame's reference count.
+	 */
+	public static int getReferenceCount(int ppn) {
+		int count = 0;
+		for (FrameMapping m = frameMappings[ppn]; m != null; m = m.next)
+			count++;
+
+		return count;
+	}
+
+	/**
+	 * Return the translation for a resident virtual page, and pin its frame so
+	 * that it cannot be evicted until <tt>unpinFrame()</tt> is called.
+	 *
+	 * @param process the process that owns the page.
+	 * @param vpn the virtual page number.
+	 * @return the translation entry of the pinned frame, or <tt>null</tt> if
+	 * the page is not resident.
+	 */
+	public static TranslationEntry pinPage(VMProcess process, int vpn) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int ppn = pageTable.lookup(process.getProcessID(), vpn);
+		TranslationEntry entry = null;
+		if (ppn != -1) {
+			pinCounts[ppn]++;
+			entry = findEntry(process, ppn);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return entry;
+	}
+
+	/**
+	 * Unpin a frame pinned by <tt>pinPage()</tt> or <tt>allocateFrame()</tt>.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public static void unpinFrame(int ppn) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(pinCounts[ppn] > 0);
+		pinCounts[ppn]--;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test whether a frame is pinned.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the frame must not be evicted.
+	 */
+	public static boolean isPinned(int ppn) {
+		return pinCounts[ppn] > 0;
+	}
+
+	/**
+	 * Test whether a frame holds a page.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if some process maps the frame.
+	 */
+	public static boolean isFrameMapped(int ppn) {
+		return frameMappings[ppn] != null;
+	}
+
+	/**
+	 * Sample the used bit of every frame, on a timer interrupt. The bits are
+	 * cleared so that the next sample sees only new references, but are
+	 * remembered in <tt>referenced</tt> until the replacement policy clears
+	 * them. Each process that used a frame is told which of its pages it used,
+	 * to keep its working set estimate up to date.
+	 */
+	private static void sampleWorkingSets() {
+		// the running process may have set used bits only in the TLB
+		if (currentProcess() instanceof VMProcess)
+			((VMProcess) currentProcess()).syncTLB();
+
+		numSamples++;
+
+		for (int ppn = 0; ppn < frameMappings.length; ppn++) {
+			for (FrameMapping m = frameMappings[ppn]; m != null; m = m.next) {
+				if (m.entry.used) {
+					m.entry.used = false;
+					referenced[ppn] = true;
+					m.process.pageUsed(m.entry.vpn);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the number of the most recent working set sample.
+	 *
+	 * @return the number of samples taken so far.
+	 */
+	public static int getSampleCount() {
+		return numSamples;
+	}
+
+	/**
+	 * Return the number of samples over which a working set is measured. A
+	 * page is in a process's working set if the process used it within this
+	 * many samples.
+	 *
+	 * @return the working set window, in samples.
+	 */
+	public static int getWorkingSetWindow() {
+		return workingSetWindow;
+	}
+
+	/**
+	 * Decide whether a new process may start. If admission control is turned
+	 * on with <tt>VMKernel.admissionControl</tt>, a process is refused if the
+	 * pages in the working sets of the processes already running, together
+	 * with <tt>admissionReserve</tt> pages for the new process, would not fit
+	 * in physical memory, since admitting it would only make them all thrash.
+	 * The working set of the process starting the new one is not counted,
+	 * since it usually goes on to wait for its child. Otherwise every process
+	 * is admitted, and is left to page.
+	 *
+	 * @return <tt>true</tt> if the new process may start.
+	 */
+	public static boolean admitProcess() {
+		if (!admissionControl)
+			return true;
+
+		UserProcess parent = currentProcess();
+
+		vmLock.acquire();
+
+		int workingSetPages = 0;
+		for (VMProcess process : processes) {
+			if (process != parent)
+				workingSetPages += process.getWorkingSetSize();
+		}
+
+		vmLock.release();
+
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		if (workingSetPages + admissionReserve <= numPhysPages)
+			return true;
+
+		Lib.debug(dbgVM, "working sets hold " + workingSetPages
+				+ " pages, refusing new process");
+		numAdmissionRefusals++;
+		return false;
+	}
+
+	/**
+	 * Add a process to those whose working sets are counted by
+	 * <tt>admitProcess()</tt>. The caller must hold the VM lock.
+	 *
+	 * @param process a process that has just set up its address space.
+	 */
+	public static void startTracking(VMProcess process) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		processes.add(process);
+	}
+
+	/**
+	 * Remove a process added by <tt>startTracking()</tt>. The caller must hold
+	 * the VM lock.
+	 *
+	 * @param process a process that is releasing its address space.
+	 */
+	public static void stopTracking(VMProcess process) {
+		Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+		processes.remove(process);
+	}
+
+	/**
+	 * Test whether any process mapping a frame has used it since its used bit
+	 * was last cleared.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the frame has been used.
+	 */
+	public static boolean isFrameUsed(int ppn) {
+		if (referenced[ppn])
+			return true;
+
+		for (FrameMapping m = frameMappings[ppn]; m != null; m = m.next) {
+			if (m.entry.used)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Test whether any process mapping a frame has modified it since it was
+	 * last written to swap.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the frame is dirty.
+	 */
+	public static boolean isFrameDirty(int ppn) {
+		for (FrameMapping m = frameMappings[ppn]; m != null; m = m.next) {
+			if (m.entry.dirty)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Clear the used bit of every mapping of a frame.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public static void clearFrameUsed(int ppn) {
+		referenced[ppn] = false;
+		for (FrameMapping m = frameMappings[ppn]; m != null; m = m.next)
+			m.entry.used = false;
+	}
+
+	/**
+	 * Return the translation entry through which a process maps a frame.
+	 */
+	private static TranslationEntry findEntry(VMProcess process, int ppn) {
+		for (FrameMapping m = frameMappings[ppn]; m != null; m = m.next) {
+			if (m.process == process)
+				return m.entry;
+		}
+
+		return null;
+	}
+
+	/**
+	 * One process's mapping of a frame. The mappings of a frame form a list,
+	 * whose length is the frame's reference count.
+	 */
+	private static class FrameMapping {
+		FrameMapping(VMProcess process, TranslationEntry entry) {
+			this.process = process;
+			this.entry = entry;
+		}
+
+		VMProcess process;
+
+		TranslationEntry entry;
+
+		FrameMapping next = null;
+	}
+
+	/** Maps (process ID, virtual page) pairs to the frames holding them. */
+	private static InvertedPageTable pageTable;
+
+	/** The mappings of each frame, indexed by frame number. */
+	private static FrameMapping[] frameMappings;
+
+	/** The frame holding each cached read-only section or mapped page. */
+	private static HashMap<String, Integer> sharedPages =
+			new HashMap<String, Integer>();
+
+	/** The cache key of each frame in <tt>sharedPages</tt>, or null. */
+	private static String[] sharedPageKeys;
+
+	/** The ID of each file name that has been memory-mapped. */
+	private static HashMap<String, Integer> fileIDs =
+			new HashMap<String, Integer>();
+
+	private static int nextFileID = 0;
+
+	/**
+	 * Whether each frame was found used by a sample since the replacement
+	 * policy last cleared its used bit.
+	 */
+	private static boolean[] referenced;
+
+	/** The processes with an address space. Protected by the VM lock. */
+	private static HashSet<VMProcess> processes = new HashSet<VMProcess>();
+
+	/** The number of samples over which a working set is measured. */
+	private static int workingSetWindow;
+
+	/** Whether <tt>admitProcess()</tt> may refuse a new process. */
+	private static boolean admissionControl;
+
+	/** The number of pages a new process is assumed to need at first. */
+	private static int admissionReserve;
+
+	/** The most pages to prefetch after a sequential fault. */
+	static int prefetchPages;
+
+	/** The number of outstanding pins on each frame. */
+	private static int[] pinCounts;
+
+	/** Chooses frames to evict when physical memory is full. */
+	private static PageReplacementPolicy replacementPolicy;
+
+	private static Lock vmLock;
+
+	/** The swap space shared by all processes. Protected by the VM lock. */
+	static SwapManager swap;
+
+	static int numCOFFLoads = 0, numZeroFills = 0, numEvictions = 0,
+			numCopiesOnWrite = 0, numSharedPageHits = 0, numFileLoads = 0,
+			numFileWrites = 0, numTLBEntriesRestored = 0, numSamples = 0,
+			numPrefetches = 0, numAdmissionRefusals = 0;
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
+	private static ClockPolicy dummy2 = null;
+
+	private static SecondChancePolicy dummy3 = null;
+
+	private static FIFOPolicy dummy4 = null;
+
+	private static AgingPolicy dummy5 = null;
+
 	private static final char dbgVM = 'v';
 }
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -14,58 +16,1138 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+
+		if (Machine.processor().hasTLB())
+			savedTLB = new TranslationEntry[Machine.processor().getTLBSize()];
+	}
+
+	/**
+	 * Execute the specified program with the specified arguments, remembering
+	 * its name, which identifies its shared pages and names the thread of a
+	 * child created by <tt>fork()</tt>. With admission control turned on, the
+	 * program is not started if <tt>VMKernel</tt> finds that the working sets
+	 * of the running processes leave no room for it.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @param args the arguments to pass to the executable.
+	 * @return <tt>true</tt> if the program was successfully executed.
+	 */
+	public boolean execute(String name, String[] args) {
+		if (!VMKernel.admitProcess())
+			return false;
+
+		executableName = name;
+
+		return super.execute(name, args);
+	}
+
+	/**
+	 * Initialize the processor's registers. A child created by
+	 * <tt>fork()</tt> starts with a copy of its parent's registers, returning
+	 * 0 from the system call; any other process starts at the program's entry
+	 * point.
+	 */
+	public void initRegisters() {
+		if (forkRegisters == null) {
+			super.initRegisters();
+			return;
+		}
+
+		Processor processor = Machine.processor();
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			processor.writeRegister(i, forkRegisters[i]);
+
+		forkRegisters = null;
 	}
 
 	/**
 	 * Save the state of this process in preparation for a context switch.
-	 * Called by <tt>UThread.saveState()</tt>.
+	 * Called by <tt>UThread.saveState()</tt>. The TLB is not invalidated;
+	 * instead its entries are saved, so that they can be put back when this
+	 * process runs again.
 	 */
 	public void saveState() {
 		super.saveState();
+
+		if (Machine.processor().hasTLB())
+			saveTLB();
 	}
 
 	/**
 	 * Restore the state of this process after a context switch. Called by
-	 * <tt>UThread.restoreState()</tt>.
+	 * <tt>UThread.restoreState()</tt>. Every TLB entry is overwritten, either
+	 * with one saved by <tt>saveState()</tt> or with an invalid entry.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		if (Machine.processor().hasTLB())
+			restoreTLB();
+		else
+			super.restoreState();
+	}
+
+	/**
+	 * Copy the used and dirty bits of every TLB entry back into the page table,
+	 * and keep a copy of the TLB's contents.
+	 */
+	private void saveTLB() {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < savedTLB.length; i++) {
+			syncTLBEntry(i);
+			savedTLB[i] = processor.readTLBEntry(i);
+		}
+	}
+
+	/**
+	 * Reload the TLB entries saved by <tt>saveTLB()</tt>. While this process
+	 * was not running, any of its pages may have been evicted or replaced by a
+	 * private copy, so an entry is only reloaded if it still matches the page's
+	 * current translation.
+	 */
+	private void restoreTLB() {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < savedTLB.length; i++) {
+			TranslationEntry saved = savedTLB[i];
+			TranslationEntry entry = null;
+			if (saved != null && saved.valid)
+				entry = VMKernel.lookupPage(this, saved.vpn);
+
+			if (entry != null && entry.ppn == saved.ppn
+					&& entry.readOnly == saved.readOnly) {
+				// the processor sets these again when the page is referenced
+				saved.used = saved.dirty = false;
+				VMKernel.numTLBEntriesRestored++;
+			}
+			else {
+				saved = new TranslationEntry();
+			}
+
+			processor.writeTLBEntry(i, saved);
+		}
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
-	 * demand-paged.
-	 * 
+	 * demand-paged. No physical memory is allocated here; every page starts
+	 * out non-resident and is loaded on its first access. Resident pages are
+	 * tracked in <tt>VMKernel</tt>'s inverted page table, so a per-process
+	 * page table is only built when the processor has no TLB.
+	 *
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		return super.loadSections();
+		swapSlots = new int[numPages];
+		Arrays.fill(swapSlots, -1);
+
+		lastUsedSamples = new int[numPages];
+		Arrays.fill(lastUsedSamples, -VMKernel.getWorkingSetWindow());
+
+		VMKernel.acquireVMLock();
+		VMKernel.startTracking(this);
+		VMKernel.releaseVMLock();
+
+		if (!Machine.processor().hasTLB()) {
+			pageTable = new TranslationEntry[numPages];
+			for (int vpn = 0; vpn < numPages; vpn++)
+				pageTable[vpn] = new TranslationEntry();
+		}
+
+		return true;
 	}
 
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		Lib.debug(dbgVM, "process " + getProcessID() + " working set "
+				+ getWorkingSetSize() + " pages");
+
+		if (Machine.processor().hasTLB())
+			flushTLB();
+
+		VMKernel.releaseFrames(this);
+
+		VMKernel.acquireVMLock();
+		VMKernel.stopTracking(this);
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (swapSlots[vpn] != -1) {
+				VMKernel.swap.freeSlot(swapSlots[vpn]);
+				swapSlots[vpn] = -1;
+			}
+		}
+		VMKernel.releaseVMLock();
+	}
+
+	/**
+	 * Translate a virtual page for an access by the kernel, first loading the
+	 * page if it is not yet resident. The page is pinned until it is passed to
+	 * <tt>releasePage()</tt>.
+	 *
+	 * @param vpn the virtual page to translate.
+	 * @param writing <tt>true</tt> if the page will be written.
+	 * @return the physical page number, or <tt>-1</tt> if the page cannot be
+	 * accessed.
+	 */
+	protected int translatePage(int vpn, boolean writing) {
+		if (!isValidPage(vpn))
+			return -1;
+
+		TranslationEntry entry = VMKernel.pinPage(this, vpn);
+		if (entry == null && (entry = handlePageFault(vpn)) == null)
+			return -1;
+
+		if (writing && entry.readOnly) {
+			VMKernel.unpinFrame(entry.ppn);
+			if (!isCopyOnWrite(vpn) || (entry = copyOnWrite(vpn)) == null)
+				return -1;
+		}
+
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		return entry.ppn;
+	}
+
+	/**
+	 * Unpin a page pinned by <tt>translatePage()</tt>.
+	 *
+	 * @param vpn the virtual page to release.
+	 */
+	protected void releasePage(int vpn) {
+		TranslationEntry entry = VMKernel.lookupPage(this, vpn);
+		Lib.assertTrue(entry != null);
+
+		VMKernel.unpinFrame(entry.ppn);
+	}
+
+	/**
+	 * Make the specified virtual page resident, evicting another page if
+	 * physical memory is full. The page is returned pinned, and the caller
+	 * must unpin it once it is done with the translation.
+	 *
+	 * @param vpn the virtual page to load.
+	 * @return the translation entry for the page, or <tt>null</tt> if no
+	 * frame could be found for it.
+	 */
+	protected TranslationEntry handlePageFault(int vpn) {
+		VMKernel.acquireVMLock();
+		TranslationEntry entry = faultIn(vpn);
+		VMKernel.releaseVMLock();
+
+		return entry;
+	}
+
+	/**
+	 * Make a virtual page resident if it is not already, and pin it. A fault
+	 * on the page after one that is already resident suggests a sequential
+	 * scan, so the pages that follow it are prefetched as well. The caller
+	 * must hold the VM lock.
+	 */
+	private TranslationEntry faultIn(int vpn) {
+		// another thread may have loaded the page while we waited for the lock
+		TranslationEntry entry = VMKernel.pinPage(this, vpn);
+		if (entry != null)
+			return entry;
+
+		entry = mapNewPage(vpn, false);
+		if (entry == null)
+			return null;
+
+		pageUsed(vpn);
+
+		if (vpn > 0 && VMKernel.lookupPage(this, vpn - 1) != null) {
+			for (int i = 1; i <= VMKernel.prefetchPages; i++) {
+				if (!prefetchPage(vpn + i))
+					break;
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Load a page that is not resident into a frame, or map the frame that
+	 * already holds it if it is a shared read-only page or a page of a mapped
+	 * file. The caller must hold the VM lock.
+	 *
+	 * @param vpn the virtual page to load.
+	 * @param prefetching <tt>true</tt> if the page is only being prefetched,
+	 * in which case it is only loaded into a free frame, and is not pinned.
+	 * @return the translation entry for the page, or <tt>null</tt> if no
+	 * frame could be found for it.
+	 */
+	private TranslationEntry mapNewPage(int vpn, boolean prefetching) {
+		String key = getSharedPageKey(vpn);
+		int ppn = (key == null) ? -1 : VMKernel.findSharedPage(key);
+		TranslationEntry entry;
+
+		if (ppn != -1) {
+			Lib.debug(dbgVM, "\tsharing vpn " + vpn + " in ppn " + ppn);
+
+			boolean readOnly = (findMemoryMap(vpn) == null);
+			entry = new TranslationEntry(vpn, ppn, true, readOnly, false,
+					false);
+			VMKernel.mapPage(this, entry);
+			if (!prefetching)
+				VMKernel.pinPage(this, vpn);
+
+			VMKernel.numSharedPageHits++;
+		}
+		else {
+			if (prefetching) {
+				int[] ppns = UserKernel.allocatePages(1);
+				ppn = (ppns == null) ? -1 : ppns[0];
+			}
+			else {
+				ppn = VMKernel.allocateFrame();
+			}
+
+			if (ppn == -1) {
+				Lib.debug(dbgVM, "\tout of physical memory");
+				return null;
+			}
+
+			entry = loadPage(vpn, ppn);
+			VMKernel.mapPage(this, entry);
+
+			if (key != null)
+				VMKernel.addSharedPage(key, ppn);
+		}
+
+		if (pageTable != null)
+			pageTable[vpn] = entry;
+
+		return entry;
+	}
+
+	/**
+	 * Load a page ahead of its first use, if there is a free frame for it.
+	 * Only pages with contents to read (from the executable, swap, or a mapped
+	 * file) are worth prefetching.
+	 *
+	 * @param vpn the virtual page to prefetch.
+	 * @return <tt>false</tt> if the scan should not prefetch any further.
+	 */
+	private boolean prefetchPage(int vpn) {
+		if (!isValidPage(vpn))
+			return false;
+		if (VMKernel.lookupPage(this, vpn) != null)
+			return true;
+
+		if (findMemoryMap(vpn) == null && swapSlots[vpn] == -1
+				&& findSection(vpn) == null)
+			return false;
+
+		if (mapNewPage(vpn, true) == null)
+			return false;
+
+		Lib.debug(dbgVM, "\tprefetched vpn " + vpn);
+		VMKernel.numPrefetches++;
+		return true;
+	}
+
+	/**
+	 * Record that this process has used a page since the last working set
+	 * sample. Called by <tt>VMKernel</tt> for each used bit it finds set, and
+	 * when a fault loads a page.
+	 *
+	 * @param vpn the virtual page that was used.
+	 */
+	void pageUsed(int vpn) {
+		// memory-mapped pages lie above the pages set up by loadSections()
+		if (vpn >= lastUsedSamples.length) {
+			int length = lastUsedSamples.length;
+			lastUsedSamples = Arrays.copyOf(lastUsedSamples, vpn + 1);
+			Arrays.fill(lastUsedSamples, length, vpn + 1,
+					-VMKernel.getWorkingSetWindow());
+		}
+
+		lastUsedSamples[vpn] = VMKernel.getSampleCount();
+	}
+
+	/**
+	 * Return the number of pages this process has used within the last
+	 * working set window. Pages that were used but have since been evicted
+	 * still count, so the estimate does not shrink when memory is short.
+	 *
+	 * @return the size of this process's working set, in pages.
+	 */
+	public int getWorkingSetSize() {
+		int oldest = VMKernel.getSampleCount() - VMKernel.getWorkingSetWindow();
+
+		int size = 0;
+		for (int vpn = 0; vpn < lastUsedSamples.length; vpn++) {
+			if (lastUsedSamples[vpn] > oldest)
+				size++;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Return the key under which a page is kept in <tt>VMKernel</tt>'s cache
+	 * of shared pages. Pages of read-only COFF sections never change, so every
+	 * process running the same executable can map the same frame. The key
+	 * identifies the executable's contents, not just its name, so that a
+	 * program that replaces a file of the same name does not map the old
+	 * file's pages. Every process mapping the same file maps the same frame
+	 * for each of its pages, so that they share the file's contents, unless
+	 * their maps disagree about the file's length.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the key, or <tt>null</tt> if the page cannot be shared.
+	 */
+	private String getSharedPageKey(int vpn) {
+		MemoryMap map = findMemoryMap(vpn);
+		if (map != null)
+			return "mmap:" + map.fileID + ":" + map.length + ":"
+					+ (vpn - map.firstVPN);
+
+		CoffSection section = findSection(vpn);
+		if (section == null || !section.isReadOnly())
+			return null;
+
+		return executableName + "#" + getExecutableID() + ":"
+				+ section.getName() + ":" + (vpn - section.getFirstVPN());
+	}
+
+	/**
+	 * Test whether a read-only mapping of a virtual page is only there to
+	 * share it copy-on-write; that is, whether the page itself is writable.
+	 */
+	private boolean isCopyOnWrite(int vpn) {
+		if (vpn < 0 || vpn >= numPages)
+			return false;
+
+		CoffSection section = findSection(vpn);
+		return section == null || !section.isReadOnly();
+	}
+
+	/**
+	 * Give this process a writable copy of a page it shares copy-on-write.
+	 * If no other process still maps the frame, it is simply made writable;
+	 * otherwise its contents are copied to a new frame.
+	 *
+	 * @param vpn the virtual page that was written.
+	 * @return the new translation entry for the page, pinned, or
+	 * <tt>null</tt> if no frame could be found for the copy.
+	 */
+	private TranslationEntry copyOnWrite(int vpn) {
+		VMKernel.acquireVMLock();
+
+		TranslationEntry entry = faultIn(vpn);
+		if (entry != null && entry.readOnly) {
+			int sharedPPN = entry.ppn;
+
+			if (VMKernel.getReferenceCount(sharedPPN) == 1) {
+				entry.readOnly = false;
+			}
+			else {
+				int ppn = VMKernel.allocateFrame();
+				if (ppn == -1) {
+					entry = null;
+				}
+				else {
+					Lib.debug(dbgVM, "\tcopying vpn " + vpn + " from ppn "
+							+ sharedPPN + " to ppn " + ppn);
+
+					byte[] memory = Machine.processor().getMemory();
+					System.arraycopy(memory, sharedPPN * pageSize, memory, ppn
+							* pageSize, pageSize);
+
+					Lib.assertTrue(!VMKernel.unmapPage(this, sharedPPN));
+					entry = new TranslationEntry(vpn, ppn, true, false, true,
+							true);
+					VMKernel.mapPage(this, entry);
+
+					if (pageTable != null)
+						pageTable[vpn] = entry;
+
+					VMKernel.numCopiesOnWrite++;
+				}
+
+				VMKernel.unpinFrame(sharedPPN);
+			}
+
+			if (Machine.processor().hasTLB())
+				invalidateTLBEntry(vpn);
+		}
+
+		VMKernel.releaseVMLock();
+		return entry;
+	}
+
+	/**
+	 * Handle a write to a read-only page. This kills the process unless the
+	 * page is only read-only because it is shared copy-on-write.
+	 *
+	 * @param vaddr the virtual address that was written.
+	 * @return <tt>false</tt> if the write was not allowed.
+	 */
+	private boolean handleReadOnly(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (!isCopyOnWrite(vpn))
+			return false;
+
+		TranslationEntry entry = copyOnWrite(vpn);
+		if (entry == null)
+			return false;
+
+		VMKernel.unpinFrame(entry.ppn);
+		return true;
+	}
+
+	/**
+	 * Fill a frame with the contents of a virtual page. Pages of a memory map
+	 * are read from the mapped file. Pages that have been written to swap are
+	 * read back from it. Otherwise, pages that belong to a COFF section are
+	 * read from the executable, and all other pages (the stack and the
+	 * argument page) are zero-filled.
+	 *
+	 * @param vpn the virtual page to load.
+	 * @param ppn the frame to load it into.
+	 * @return a valid translation entry for the page.
+	 */
+	private TranslationEntry loadPage(int vpn, int ppn) {
+		MemoryMap map = findMemoryMap(vpn);
+		CoffSection section = findSection(vpn);
+		if (map != null) {
+			Lib.debug(dbgVM, "\tloading vpn " + vpn + " from "
+					+ map.file.getName() + " into ppn " + ppn);
+			map.readPage(vpn, ppn);
+			VMKernel.numFileLoads++;
+		}
+		else if (swapSlots[vpn] != -1) {
+			Lib.debug(dbgVM, "\tswapping in vpn " + vpn + " into ppn " + ppn);
+			VMKernel.swap.readPage(swapSlots[vpn], ppn);
+		}
+		else if (section != null) {
+			Lib.debug(dbgVM, "\tloading vpn " + vpn + " from "
+					+ section.getName() + " into ppn " + ppn);
+			if (!loadSnapshotPage(vpn, ppn)) {
+				section.loadPage(vpn - section.getFirstVPN(), ppn);
+				saveSnapshotPage(vpn, ppn);
+			}
+			VMKernel.numCOFFLoads++;
+		}
+		else {
+			Lib.debug(dbgVM, "\tzero-filling vpn " + vpn + " into ppn " + ppn);
+			byte[] memory = Machine.processor().getMemory();
+			Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize,
+					(byte) 0);
+			VMKernel.numZeroFills++;
+		}
+
+		boolean readOnly = (section != null && section.isReadOnly());
+		return new TranslationEntry(vpn, ppn, true, readOnly, false, false);
+	}
+
+	/**
+	 * Called by <tt>VMKernel</tt> after one of this process's pages has been
+	 * unmapped for eviction. A dirty page is written to swap so that it can be
+	 * reloaded later, or back to its file if it belongs to a memory map. A
+	 * clean page can simply be dropped, since it is still in the executable,
+	 * its file, swap, or all zeroes.
+	 *
+	 * <p>
+	 * Resident dirty pages adjacent to the victim, and not shared with another
+	 * process, are cleaned in the same write, so that a run of pages goes to
+	 * swap in one operation and the neighbours can later be evicted without
+	 * writing them again.
+	 *
+	 * @param entry the translation entry of the evicted page.
+	 */
+	void pageEvicted(TranslationEntry entry) {
+		if (!entry.dirty)
+			return;
+
+		MemoryMap map = findMemoryMap(entry.vpn);
+		if (map != null) {
+			map.writePage(entry.vpn, entry.ppn);
+			forgetExecutable(map.file);
+			return;
+		}
+
+		int first = entry.vpn, last = entry.vpn;
+		while (last - first + 1 < maxSwapBatch && isCleanable(last + 1))
+			last++;
+		while (last - first + 1 < maxSwapBatch && isCleanable(first - 1))
+			first--;
+
+		int count = last - first + 1;
+		int[] ppns = new int[count];
+		for (int i = 0; i < count; i++) {
+			int vpn = first + i;
+			TranslationEntry page = (vpn == entry.vpn) ? entry : VMKernel
+					.lookupPage(this, vpn);
+
+			page.dirty = false;
+			ppns[i] = page.ppn;
+
+			// the old copy in swap is stale
+			if (swapSlots[vpn] != -1) {
+				VMKernel.swap.freeSlot(swapSlots[vpn]);
+				swapSlots[vpn] = -1;
+			}
+		}
+
+		int slot = VMKernel.swap.writePages(ppns, count);
+		for (int i = 0; i < count; i++)
+			swapSlots[first + i] = slot + i;
+	}
+
+	/**
+	 * Test whether a virtual page can be written to swap along with an
+	 * evicted page: it must be resident, dirty, and not pinned.
+	 */
+	private boolean isCleanable(int vpn) {
+		if (vpn < 0 || vpn >= numPages)
+			return false;
+
+		TranslationEntry entry = VMKernel.lookupPage(this, vpn);
+		return entry != null && entry.dirty && !VMKernel.isPinned(entry.ppn)
+				&& VMKernel.getReferenceCount(entry.ppn) == 1;
+	}
+
+	/**
+	 * Record that a virtual page has been written to a swap slot, dropping
+	 * the reference to the slot that held it before, if any.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param slot the slot now holding the page.
+	 */
+	void setSwapSlot(int vpn, int slot) {
+		if (swapSlots[vpn] != -1)
+			VMKernel.swap.freeSlot(swapSlots[vpn]);
+
+		swapSlots[vpn] = slot;
+	}
+
+	/**
+	 * Return this process's ID, which together with a virtual page number
+	 * identifies a page in <tt>VMKernel</tt>'s inverted page table.
+	 *
+	 * @return the process ID.
+	 */
+	int getProcessID() {
+		return pid;
+	}
+
+	/**
+	 * Return the COFF section containing the specified virtual page.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the section, or <tt>null</tt> if the page is not part of the
+	 * executable image.
+	 */
+	private CoffSection findSection(int vpn) {
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (vpn >= section.getFirstVPN()
+					&& vpn < section.getFirstVPN() + section.getLength())
+				return section;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Handle a TLB miss by loading the page if necessary and then placing its
+	 * translation in the TLB.
+	 *
+	 * @param vaddr the virtual address that missed.
+	 * @return <tt>false</tt> if the address is invalid or the page could not
+	 * be loaded.
+	 */
+	private boolean handleTLBMiss(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (!isValidPage(vpn))
+			return false;
+
+		TranslationEntry entry = VMKernel.pinPage(this, vpn);
+		if (entry == null && (entry = handlePageFault(vpn)) == null)
+			return false;
+
+		Processor processor = Machine.processor();
+
+		// prefer an empty slot; otherwise replace in round-robin order
+		int slot = -1;
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			if (!processor.readTLBEntry(i).valid) {
+				slot = i;
+				break;
+			}
+		}
+		if (slot == -1) {
+			slot = nextTLBVictim;
+			nextTLBVictim = (nextTLBVictim + 1) % processor.getTLBSize();
+			syncTLBEntry(slot);
+		}
+
+		processor.writeTLBEntry(slot, entry);
+		VMKernel.unpinFrame(entry.ppn);
+		return true;
+	}
+
+	/**
+	 * Copy the used and dirty bits of a TLB entry back into the page table.
+	 *
+	 * @param slot the TLB entry to copy.
+	 */
+	private void syncTLBEntry(int slot) {
+		TranslationEntry tlbEntry = Machine.processor().readTLBEntry(slot);
+		if (!tlbEntry.valid)
+			return;
+
+		TranslationEntry entry = VMKernel.lookupPage(this, tlbEntry.vpn);
+		if (entry != null) {
+			entry.used |= tlbEntry.used;
+			entry.dirty |= tlbEntry.dirty;
+		}
+	}
+
+	/**
+	 * Copy the used and dirty bits of every TLB entry back into the page table,
+	 * and clear them in the TLB so that later references set them again.
+	 */
+	void syncTLB() {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB())
+			return;
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			syncTLBEntry(i);
+
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid) {
+				tlbEntry.used = tlbEntry.dirty = false;
+				processor.writeTLBEntry(i, tlbEntry);
+			}
+		}
+	}
+
+	/**
+	 * Invalidate the TLB entry for a virtual page, if there is one.
+	 *
+	 * @param vpn the virtual page number.
+	 */
+	void invalidateTLBEntry(int vpn) {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid && tlbEntry.vpn == vpn)
+				processor.writeTLBEntry(i, new TranslationEntry());
+		}
+	}
+
+	/**
+	 * Copy the used and dirty bits of every TLB entry back into the page table
+	 * and invalidate the TLB.
+	 */
+	private void flushTLB() {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			syncTLBEntry(i);
+			processor.writeTLBEntry(i, new TranslationEntry());
+		}
+	}
+
+	/**
+	 * Handle a syscall exception. Adds <tt>mmap()</tt> and <tt>fork()</tt> to
+	 * the calls handled by <tt>UserProcess</tt>, refuses <tt>read()</tt> and
+	 * <tt>write()</tt> on a file descriptor that has been mapped, and stops
+	 * <tt>unlink()</tt>ed files from sharing pages with later files of the
+	 * same name.
+	 *
+	 * @param syscall the syscall number.
+	 * @param a0 the first syscall argument.
+	 * @param a1 the second syscall argument.
+	 * @param a2 the third syscall argument.
+	 * @param a3 the fourth syscall argument.
+	 * @return the value to be returned to the user.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallRead:
+		case syscallWrite:
+		case syscallPread:
+		case syscallPwrite:
+		case syscallReadv:
+		case syscallWritev:
+			if (a0 >= 0 && a0 < memoryMaps.length && memoryMaps[a0] != null)
+				return -1;
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+
+		case syscallUnlink:
+			String name = readVirtualMemoryString(a0, maxFileNameLength);
+			if (name != null) {
+				VMKernel.acquireVMLock();
+				VMKernel.forgetFileID(name);
+				VMKernel.releaseVMLock();
+			}
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+
+		case syscallMmap:
+			return handleMmap(a0, a1);
+
+		case syscallFork:
+			return handleFork();
+
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+	/**
+	 * Handle the mmap() system call. The whole file is mapped, starting at a
+	 * page-aligned address above the program's own pages. Nothing is read
+	 * until the pages are touched.
+	 */
+	private int handleMmap(int fd, int vaddr) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || file.getFileSystem() == null
+				|| memoryMaps[fd] != null || vaddr < 0
+				|| Processor.offsetFromAddress(vaddr) != 0)
+			return -1;
+
+		int length = file.length();
+		if (length < 0)
+			return -1;
+
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int count = (int) (((long) length + pageSize - 1) / pageSize);
+		if (firstVPN < numPages
+				|| (long) vaddr + (long) count * pageSize > 0x80000000L)
+			return -1;
+
+		for (int i = 0; i < memoryMaps.length; i++) {
+			MemoryMap map = memoryMaps[i];
+			if (map != null && firstVPN < map.firstVPN + map.numPages
+					&& map.firstVPN < firstVPN + count)
+				return -1;
+		}
+
+		VMKernel.acquireVMLock();
+		int fileID = VMKernel.getFileID(file.getName());
+		VMKernel.releaseVMLock();
+
+		memoryMaps[fd] = new MemoryMap(file, fileID, firstVPN, count, length);
+
+		// the processor treats a missing page table entry as a page fault
+		if (pageTable != null && pageTable.length < firstVPN + count) {
+			pageTable = Arrays.copyOf(pageTable, firstVPN + count);
+			Machine.processor().setPageTable(pageTable);
+		}
+
+		return length;
+	}
+
+	/**
+	 * Close a file descriptor, first removing its memory map (if it has one)
+	 * and writing the map's dirty pages back to the file.
+	 *
+	 * @param fd a file descriptor that refers to an open file.
+	 */
+	protected void closeFile(int fd) {
+		MemoryMap map = memoryMaps[fd];
+		if (map != null) {
+			if (Machine.processor().hasTLB())
+				flushTLB();
+
+			VMKernel.acquireVMLock();
+
+			boolean written = false;
+			for (int i = 0; i < map.numPages; i++) {
+				int vpn = map.firstVPN + i;
+				TranslationEntry entry = VMKernel.lookupPage(this, vpn);
+				if (entry == null)
+					continue;
+
+				if (entry.dirty) {
+					map.writePage(vpn, entry.ppn);
+					written = true;
+				}
+
+				// another process mapping the file may still be using the frame
+				if (VMKernel.unmapPage(this, entry.ppn)) {
+					Lib.assertTrue(!VMKernel.isPinned(entry.ppn));
+					UserKernel.freePage(entry.ppn);
+				}
+
+				if (pageTable != null)
+					pageTable[vpn] = null;
+			}
+
+			memoryMaps[fd] = null;
+
+			VMKernel.releaseVMLock();
+
+			if (written)
+				forgetExecutable(map.file);
+		}
+
+		super.closeFile(fd);
+	}
+
+	/**
+	 * Test whether a virtual page is part of this process's address space:
+	 * either one of the program's pages or a page of a memory map.
+	 */
+	private boolean isValidPage(int vpn) {
+		return (vpn >= 0 && vpn < numPages) || findMemoryMap(vpn) != null;
+	}
+
+	/**
+	 * Test whether a virtual page belongs to a memory map. Called by
+	 * <tt>VMKernel</tt> to find out whether a shared page is written back to
+	 * its file or to swap.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page is mapped from a file.
+	 */
+	boolean isMappedPage(int vpn) {
+		return findMemoryMap(vpn) != null;
+	}
+
+	/**
+	 * Return the memory map containing a virtual page.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the map, or <tt>null</tt> if the page is not mapped from a file.
+	 */
+	private MemoryMap findMemoryMap(int vpn) {
+		if (vpn < numPages)
+			return null;
+
+		for (int fd = 0; fd < memoryMaps.length; fd++) {
+			MemoryMap map = memoryMaps[fd];
+			if (map != null && vpn >= map.firstVPN
+					&& vpn < map.firstVPN + map.numPages)
+				return map;
+		}
+
+		return null;
+	}
+
+	/**
+	 * A file mapped into memory by <tt>mmap()</tt>. The last page of the map
+	 * may run past the end of the file; that part reads as zeroes and is
+	 * never written back.
+	 */
+	private static class MemoryMap {
+		MemoryMap(OpenFile file, int fileID, int firstVPN, int numPages,
+				int length) {
+			this.file = file;
+			this.fileID = fileID;
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+			this.length = length;
+		}
+
+		/**
+		 * Read a page of the file into a frame.
+		 */
+		void readPage(int vpn, int ppn) {
+			byte[] memory = Machine.processor().getMemory();
+			int position = (vpn - firstVPN) * pageSize;
+			int amount = Math.min(pageSize, length - position);
+
+			int read = file.read(position, memory, ppn * pageSize, amount);
+			if (read < 0)
+				read = 0;
+
+			Arrays.fill(memory, ppn * pageSize + read, (ppn + 1) * pageSize,
+					(byte) 0);
+		}
+
+		/**
+		 * Write the part of a frame that lies within the file back to it.
+		 */
+		void writePage(int vpn, int ppn) {
+			int position = (vpn - firstVPN) * pageSize;
+			int amount = Math.min(pageSize, length - position);
+
+			file.write(position, Machine.processor().getMemory(), ppn
+					* pageSize, amount);
+			VMKernel.numFileWrites++;
+		}
+
+		OpenFile file;
+
+		int fileID, firstVPN, numPages, length;
+	}
+
+	/**
+	 * Handle the fork() system call. The child shares every resident page of
+	 * this process copy-on-write, and shares its swap slots, its executable
+	 * and each of its open files.
+	 */
+	private int handleFork() {
+		UserProcess process = newUserProcess();
+		Lib.assertTrue(process instanceof VMProcess);
+		VMProcess child = (VMProcess) process;
+
+		if (!child.forkFrom(this)) {
+			child.closeFiles();
+			return -1;
+		}
+
+		addChild(child);
+		child.start(executableName);
+
+		return child.getProcessID();
+	}
+
+	/**
+	 * Make this new process a copy of the current process, which is calling
+	 * <tt>fork()</tt>.
+	 *
+	 * @param parent the current process.
+	 * @return <tt>true</tt> if successful.
+	 */
+	private boolean forkFrom(VMProcess parent) {
+		// the child shares the parent's frames, so it must see the same image
+		if (!forkExecutable(parent))
+			return false;
+
+		executableName = parent.executableName;
+		loadSections();
+
+		for (int fd = 0; fd < fileTable.length; fd++) {
+			if (fileTable[fd] != null)
+				fileTable[fd].close();
+
+			fileTable[fd] = (parent.fileTable[fd] == null) ? null : parent
+					.duplicateFile(fd);
+		}
+
+		// resume where the parent will, but with fork() returning 0
+		Processor processor = Machine.processor();
+		forkRegisters = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			forkRegisters[i] = processor.readRegister(i);
+		forkRegisters[Processor.regV0] = 0;
+		forkRegisters[Processor.regPC] = forkRegisters[Processor.regNextPC];
+		forkRegisters[Processor.regNextPC] += 4;
+
+		// the parent's TLB entries are about to become read-only
+		if (processor.hasTLB())
+			parent.flushTLB();
+
+		VMKernel.acquireVMLock();
+
+		// memory maps are not inherited, so only the program's pages are shared
+		VMKernel.shareFrames(parent, this, numPages, pageTable);
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			swapSlots[vpn] = parent.swapSlots[vpn];
+			if (swapSlots[vpn] != -1)
+				VMKernel.swap.addReference(swapSlots[vpn]);
+		}
+
+		VMKernel.releaseVMLock();
+
+		return true;
+	}
+
+	/**
+	 * Return a second handle on the file or console open on a file descriptor,
+	 * starting at the same position, for a child created by <tt>fork()</tt>.
+	 * A file is not opened again by name; instead this process's own handle
+	 * becomes a <tt>SharedOpenFile</tt> that the child's handle duplicates,
+	 * so the two always refer to the same file.
+	 *
+	 * @param fd a file descriptor that refers to an open file.
+	 * @return the new handle.
+	 */
+	private OpenFile duplicateFile(int fd) {
+		OpenFile file = fileTable[fd];
+		if (file.getFileSystem() == null)
+			return UserKernel.console.duplicate(file);
+
+		if (!(file instanceof SharedOpenFile)) {
+			file = new SharedOpenFile(file);
+			fileTable[fd] = file;
+		}
+
+		return ((SharedOpenFile) file).duplicate();
 	}
 
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
 	 * <tt>Processor.exceptionZZZ</tt> constants.
-	 * 
+	 *
 	 * @param cause the user exception that occurred.
 	 */
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
+		case Processor.exceptionTLBMiss:
+			if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+				super.handleException(cause);
+			break;
+
+		case Processor.exceptionReadOnly:
+			if (!handleReadOnly(processor.readRegister(Processor.regBadVAddr)))
+				super.handleException(cause);
+			break;
+
+		case Processor.exceptionPageFault:
+			int vpn = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			TranslationEntry entry = null;
+			if (isValidPage(vpn) && (entry = handlePageFault(vpn)) != null)
+				VMKernel.unpinFrame(entry.ppn);
+			else
+				super.handleException(cause);
+			break;
+
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	/**
+	 * The swap slot holding an up-to-date copy of each virtual page, or
+	 * <tt>-1</tt> if there is none.
+	 */
+	private int[] swapSlots;
+
+	/**
+	 * The contents of the TLB when this process was last switched out, or
+	 * <tt>null</tt> if the processor has no TLB.
+	 */
+	private TranslationEntry[] savedTLB = null;
+
+	/** The memory map of each file descriptor, or <tt>null</tt>. */
+	private MemoryMap[] memoryMaps = new MemoryMap[maxOpenFiles];
+
+	/** The name of the executable this process is running. */
+	private String executableName;
+
+	/**
+	 * The registers a child created by <tt>fork()</tt> starts with, or
+	 * <tt>null</tt> once they have been loaded.
+	 */
+	private int[] forkRegisters = null;
+
+	/**
+	 * The working set sample at which each virtual page was last found used.
+	 */
+	private int[] lastUsedSamples;
+
+	/** The most pages written to swap in one operation. */
+	private static final int maxSwapBatch = 8;
+
+	/** The TLB entry to replace on the next miss that finds no free slot. */
+	private static int nextTLBVictim = 0;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';